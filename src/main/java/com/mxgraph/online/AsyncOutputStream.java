@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Blocking output stream for a worker thread on top of the non-blocking
+ * output of an async request. Each write waits until the container reports
+ * that the output is ready via the write listener, so the worker is only
+ * throttled by the client while no container thread is held. Closing the
+ * stream completes the async context.
+ */
+public class AsyncOutputStream extends OutputStream implements WriteListener
+{
+
+	/**
+	 * Holds the async context.
+	 */
+	protected final AsyncContext context;
+
+	/**
+	 * Holds the non-blocking output of the response.
+	 */
+	protected final ServletOutputStream out;
+
+	/**
+	 * Maximum time in milliseconds to wait for the output to become ready.
+	 */
+	protected final long timeout;
+
+	/**
+	 * True if the container has called onWritePossible since the last time
+	 * the output was not ready.
+	 */
+	protected boolean signalled = false;
+
+	/**
+	 * Holds the error of the output or the async context.
+	 */
+	protected IOException error = null;
+
+	protected boolean closed = false;
+
+	/**
+	 * Creates a stream for the given async context and registers it as the
+	 * write listener. Must be called on the request thread.
+	 */
+	public AsyncOutputStream(AsyncContext context, long timeout)
+			throws IOException
+	{
+		this.context = context;
+		this.timeout = timeout;
+		out = context.getResponse().getOutputStream();
+
+		context.addListener(new AsyncListener()
+		{
+			public void onTimeout(AsyncEvent event) throws IOException
+			{
+				AsyncOutputStream.this
+						.onError(new IOException("Async timeout"));
+			}
+
+			public void onError(AsyncEvent event) throws IOException
+			{
+				AsyncOutputStream.this.onError(event.getThrowable());
+			}
+
+			public void onComplete(AsyncEvent event) throws IOException
+			{
+				// ignore
+			}
+
+			public void onStartAsync(AsyncEvent event) throws IOException
+			{
+				// ignore
+			}
+		});
+
+		out.setWriteListener(this);
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void onWritePossible()
+	{
+		signalled = true;
+		notifyAll();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void onError(Throwable t)
+	{
+		if (error == null)
+		{
+			error = (t instanceof IOException) ? (IOException) t
+					: new IOException(t);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the output is ready for writing.
+	 */
+	protected void awaitReady() throws IOException
+	{
+		long end = System.currentTimeMillis() + timeout;
+
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (error != null)
+				{
+					throw error;
+				}
+				else if (closed)
+				{
+					throw new IOException("Stream closed");
+				}
+
+				signalled = false;
+			}
+
+			// Outside of the lock to avoid lock-order issues with the
+			// container which calls onWritePossible if this returns false
+			if (out.isReady())
+			{
+				return;
+			}
+
+			synchronized (this)
+			{
+				while (!signalled && error == null)
+				{
+					long wait = end - System.currentTimeMillis();
+
+					if (wait <= 0)
+					{
+						throw new IOException("Timeout waiting for client");
+					}
+
+					try
+					{
+						wait(wait);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void write(int b) throws IOException
+	{
+		awaitReady();
+		out.write(b);
+	}
+
+	/**
+	 *
+	 */
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		awaitReady();
+		out.write(b, off, len);
+	}
+
+	/**
+	 *
+	 */
+	public void flush() throws IOException
+	{
+		awaitReady();
+		out.flush();
+	}
+
+	/**
+	 * Completes the async context. The container writes pending data before
+	 * the response is closed.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+		}
+
+		try
+		{
+			context.complete();
+		}
+		catch (IllegalStateException e)
+		{
+			// ignore
+		}
+	}
+
+}
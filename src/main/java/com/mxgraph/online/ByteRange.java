@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+/**
+ * Single byte range of a Range request header with the optional If-Range
+ * validator. Multiple ranges are not supported and are ignored so that the
+ * full content is returned.
+ */
+public class ByteRange
+{
+
+	/**
+	 * First byte of the range or -1 for a suffix range.
+	 */
+	protected final long first;
+
+	/**
+	 * Last byte of the range, -1 for an open range or the length of a suffix
+	 * range.
+	 */
+	protected final long last;
+
+	/**
+	 * Holds the value of the If-Range header or null.
+	 */
+	protected final String ifRange;
+
+	/**
+	 * Constructs a new range.
+	 */
+	protected ByteRange(long first, long last, String ifRange)
+	{
+		this.first = first;
+		this.last = last;
+		this.ifRange = ifRange;
+	}
+
+	/**
+	 * Returns the range for the given Range and If-Range headers or null if
+	 * the header is missing, invalid or contains more than one range.
+	 */
+	public static ByteRange parse(String range, String ifRange)
+	{
+		if (range == null || !range.startsWith("bytes=")
+				|| range.indexOf(',') >= 0)
+		{
+			return null;
+		}
+
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+
+		if (dash < 0)
+		{
+			return null;
+		}
+
+		try
+		{
+			String a = spec.substring(0, dash).trim();
+			String b = spec.substring(dash + 1).trim();
+
+			if (a.length() == 0)
+			{
+				long suffix = Long.parseLong(b);
+
+				return (suffix > 0) ? new ByteRange(-1, suffix, ifRange) : null;
+			}
+
+			long first = Long.parseLong(a);
+			long last = (b.length() > 0) ? Long.parseLong(b) : -1;
+
+			return (first >= 0 && (last < 0 || last >= first))
+					? new ByteRange(first, last, ifRange)
+					: null;
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the first byte of the Content-Range header of a partial
+	 * response or -1 if the header is missing or invalid.
+	 */
+	public static long getFirst(String contentRange)
+	{
+		if (contentRange != null && contentRange.startsWith("bytes "))
+		{
+			int dash = contentRange.indexOf('-');
+
+			if (dash > 6)
+			{
+				try
+				{
+					return Long.parseLong(
+							contentRange.substring(6, dash).trim());
+				}
+				catch (NumberFormatException e)
+				{
+					// ignore
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns true if the range applies to the content with the given
+	 * validators. An entity tag in If-Range must be a strong match, a date
+	 * must be equal to the Last-Modified value.
+	 */
+	public boolean matches(String etag, String lastModified)
+	{
+		if (ifRange == null)
+		{
+			return true;
+		}
+		else if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+		{
+			return etag != null && !etag.startsWith("W/")
+					&& ifRange.equals(etag);
+		}
+		else
+		{
+			return ifRange.equals(lastModified);
+		}
+	}
+
+	/**
+	 * Returns true if the range overlaps content of the given size.
+	 */
+	public boolean isSatisfiable(long size)
+	{
+		return (first < 0) ? size > 0 : first < size;
+	}
+
+	/**
+	 * Returns true if the range contains the first given number of bytes of
+	 * the content.
+	 */
+	public boolean containsHead(long length)
+	{
+		return first == 0 && (last < 0 || last >= length - 1);
+	}
+
+	/**
+	 * Returns the first byte of the range for content of the given size.
+	 */
+	public long getFirst(long size)
+	{
+		return (first < 0) ? Math.max(0, size - last) : first;
+	}
+
+	/**
+	 * Returns the last byte of the range for content of the given size.
+	 */
+	public long getLast(long size)
+	{
+		return (first < 0 || last < 0) ? size - 1 : Math.min(last, size - 1);
+	}
+
+	/**
+	 * Returns the Content-Range header value for content of the given size.
+	 */
+	public String getContentRange(long size)
+	{
+		return "bytes " + getFirst(size) + "-" + getLast(size) + "/" + size;
+	}
+
+	/**
+	 * Returns the value of the If-Range header or null.
+	 */
+	public String getIfRange()
+	{
+		return ifRange;
+	}
+
+	/**
+	 * Returns the value for the Range header.
+	 */
+	public String toString()
+	{
+		return "bytes=" + ((first < 0) ? "-" + last
+				: first + "-" + ((last >= 0) ? String.valueOf(last) : ""));
+	}
+
+}
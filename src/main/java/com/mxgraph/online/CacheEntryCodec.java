@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * Compact binary encoding for cache entries. The format is a version byte,
+ * a flags byte, the optional Adler-32 checksum of the preset dictionary and
+ * the body. The body holds the etag, data and secret as varint-prefixed
+ * UTF-8 strings (the secret length is stored plus one with zero for null).
+ * The body is deflated if that makes it smaller, optionally using a preset
+ * dictionary that is shared by all entries of a diagram.
+ */
+public class CacheEntryCodec
+{
+
+	/**
+	 * Version of the encoding.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Flag for deflated bodies.
+	 */
+	public static final int FLAG_DEFLATED = 1;
+
+	/**
+	 * Flag for bodies that were deflated with a preset dictionary.
+	 */
+	public static final int FLAG_DICTIONARY = 2;
+
+	/**
+	 * Bodies smaller than this are never deflated.
+	 */
+	public static final int MIN_DEFLATE_SIZE = 64;
+
+	/**
+	 * Maximum size of a dictionary. This is the window size of deflate.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	/**
+	 * Creates a preset dictionary from the given entry. Deflate prefers
+	 * matches near the end of the dictionary so the end of the data is used.
+	 */
+	public static byte[] createDictionary(CacheEntry entry)
+	{
+		byte[] data = entry.getData().getBytes(StandardCharsets.UTF_8);
+
+		return (data.length > MAX_DICTIONARY_SIZE)
+				? Arrays.copyOfRange(data, data.length - MAX_DICTIONARY_SIZE,
+						data.length)
+				: data;
+	}
+
+	/**
+	 * Returns the Adler-32 checksum of the given dictionary.
+	 */
+	protected static int getChecksum(byte[] dictionary)
+	{
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Returns the checksum of the dictionary that the given bytes were
+	 * encoded with or null if no dictionary was used.
+	 */
+	public static Integer getDictionaryChecksum(byte[] bytes)
+	{
+		if (bytes.length < 6 || bytes[0] != VERSION
+				|| (bytes[1] & FLAG_DICTIONARY) == 0)
+		{
+			return null;
+		}
+
+		return ((bytes[2] & 0xFF) << 24) | ((bytes[3] & 0xFF) << 16)
+				| ((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF);
+	}
+
+	/**
+	 * Encodes the given entry using the given optional dictionary.
+	 */
+	public static byte[] encode(CacheEntry entry, byte[] dictionary)
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream(
+				entry.getData().length() + 64);
+		writeString(body, entry.getEtag(), false);
+		writeString(body, entry.getData(), false);
+		writeString(body, entry.getSecret(), true);
+		byte[] bytes = body.toByteArray();
+		int flags = 0;
+
+		if (bytes.length >= MIN_DEFLATE_SIZE)
+		{
+			byte[] deflated = Utils.deflate(bytes, dictionary);
+
+			if (deflated.length < bytes.length)
+			{
+				bytes = deflated;
+				flags = (dictionary != null) ? FLAG_DEFLATED | FLAG_DICTIONARY
+						: FLAG_DEFLATED;
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				bytes.length + 6);
+		out.write(VERSION);
+		out.write(flags);
+
+		if ((flags & FLAG_DICTIONARY) != 0)
+		{
+			int checksum = getChecksum(dictionary);
+			out.write(checksum >>> 24);
+			out.write(checksum >>> 16);
+			out.write(checksum >>> 8);
+			out.write(checksum);
+		}
+
+		out.write(bytes, 0, bytes.length);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes the given bytes using the given optional dictionary. Throws an
+	 * exception if the bytes are invalid or were encoded with a different
+	 * dictionary.
+	 */
+	public static CacheEntry decode(byte[] bytes, byte[] dictionary)
+			throws IOException
+	{
+		if (bytes.length < 2 || bytes[0] != VERSION)
+		{
+			throw new IOException("Unsupported cache entry encoding");
+		}
+
+		int flags = bytes[1];
+		int offset = 2;
+
+		if ((flags & FLAG_DICTIONARY) != 0)
+		{
+			Integer checksum = getDictionaryChecksum(bytes);
+
+			if (dictionary == null || checksum == null)
+			{
+				throw new IOException("Missing dictionary");
+			}
+
+			if (checksum != getChecksum(dictionary))
+			{
+				throw new IOException("Dictionary mismatch");
+			}
+
+			offset = 6;
+		}
+
+		byte[] body = Arrays.copyOfRange(bytes, offset, bytes.length);
+
+		if ((flags & FLAG_DEFLATED) != 0)
+		{
+			body = Utils.inflate(body,
+					((flags & FLAG_DICTIONARY) != 0) ? dictionary : null);
+		}
+
+		int[] pos = new int[1];
+		String etag = readString(body, pos, false);
+		String data = readString(body, pos, false);
+		String secret = readString(body, pos, true);
+
+		return new CacheEntry(etag, data, secret);
+	}
+
+	/**
+	 * Writes the given string as varint-prefixed UTF-8.
+	 */
+	protected static void writeString(ByteArrayOutputStream out, String value,
+			boolean nullable)
+	{
+		if (value == null)
+		{
+			writeVarint(out, 0);
+		}
+		else
+		{
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, (nullable) ? bytes.length + 1 : bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Reads a varint-prefixed UTF-8 string at the given position.
+	 */
+	protected static String readString(byte[] bytes, int[] pos,
+			boolean nullable) throws IOException
+	{
+		int len = readVarint(bytes, pos);
+
+		if (nullable)
+		{
+			if (len == 0)
+			{
+				return null;
+			}
+
+			len--;
+		}
+
+		if (len < 0 || pos[0] + len > bytes.length)
+		{
+			throw new IOException("Invalid string length");
+		}
+
+		String result = new String(bytes, pos[0], len, StandardCharsets.UTF_8);
+		pos[0] += len;
+
+		return result;
+	}
+
+	/**
+	 * Writes the given non-negative value as an unsigned LEB128 varint.
+	 */
+	protected static void writeVarint(ByteArrayOutputStream out, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write(value);
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint at the given position.
+	 */
+	protected static int readVarint(byte[] bytes, int[] pos)
+			throws IOException
+	{
+		int result = 0;
+
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			if (pos[0] >= bytes.length)
+			{
+				throw new IOException("Truncated varint");
+			}
+
+			int b = bytes[pos[0]++];
+			result |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+			{
+				return result;
+			}
+		}
+
+		throw new IOException("Invalid varint");
+	}
+
+}
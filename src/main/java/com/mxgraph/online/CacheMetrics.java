@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the cache servlet. Recording only increments
+ * striped counters so that it does not contend on the hot path. The values
+ * are written in the Prometheus text format.
+ */
+public class CacheMetrics
+{
+
+	/**
+	 * Content type of the Prometheus text format.
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	/**
+	 * Number of patches returned per getPatches request.
+	 */
+	public final Histogram chainLength = new Histogram(1, 12);
+
+	/**
+	 * Latency of getPatches requests in microseconds.
+	 */
+	public final Histogram patchLatency = new Histogram(50, 18);
+
+	/**
+	 * Number of bytes written in getPatches responses.
+	 */
+	public final LongAdder bytesServed = new LongAdder();
+
+	/**
+	 * Number of getPatches requests with a wrong secret.
+	 */
+	public final LongAdder unauthorized = new LongAdder();
+
+	/**
+	 * Number of getPatches requests that returned no patches.
+	 */
+	public final LongAdder emptyChains = new LongAdder();
+
+	/**
+	 * Number of patches that were added.
+	 */
+	public final LongAdder patchesAdded = new LongAdder();
+
+	/**
+	 * Number of POST requests that were rejected by the rate limiter or the
+	 * pending size limit.
+	 */
+	public final LongAdder rateLimited = new LongAdder();
+
+	/**
+	 * Writes all metrics in the Prometheus text format. The given queue and
+	 * subscriptions are optional.
+	 */
+	public void write(PrintWriter writer, PusherQueue pusherQueue,
+			PatchSubscriptions subscriptions)
+	{
+		chainLength.write(writer, "drawio_cache_chain_length",
+				"Number of patches returned per request.", 1);
+		patchLatency.write(writer, "drawio_cache_get_patches_seconds",
+				"Latency of patch requests.", 1e-6);
+		writeCounter(writer, "drawio_cache_bytes_served_total",
+				"Bytes written in patch responses.", bytesServed.sum());
+		writeCounter(writer, "drawio_cache_unauthorized_total",
+				"Patch requests with a wrong secret.", unauthorized.sum());
+		writeCounter(writer, "drawio_cache_empty_chain_total",
+				"Patch requests that returned no patches.",
+				emptyChains.sum());
+		writeCounter(writer, "drawio_cache_patches_added_total",
+				"Patches that were added.", patchesAdded.sum());
+		writeCounter(writer, "drawio_cache_rate_limited_total",
+				"Patch requests that were rejected due to load.",
+				rateLimited.sum());
+
+		if (subscriptions != null)
+		{
+			writeGauge(writer, "drawio_cache_subscribers",
+					"Open subscriptions.",
+					subscriptions.getSubscriberCount());
+		}
+
+		if (pusherQueue != null)
+		{
+			pusherQueue.triggerLatency.write(writer,
+					"drawio_cache_pusher_trigger_seconds",
+					"Latency of Pusher batch triggers.", 1e-6);
+			writeGauge(writer, "drawio_cache_pusher_queue_depth",
+					"Pusher events waiting to be sent.",
+					pusherQueue.getQueueDepth());
+			writeCounter(writer, "drawio_cache_pusher_dropped_total",
+					"Pusher events dropped because the queue was full.",
+					pusherQueue.getDropCount());
+			writeCounter(writer, "drawio_cache_pusher_coalesced_total",
+					"Pusher events replaced by a newer event for the same channel.",
+					pusherQueue.getCoalescedCount());
+		}
+	}
+
+	/**
+	 * Writes a counter.
+	 */
+	public static void writeCounter(PrintWriter writer, String name,
+			String help, long value)
+	{
+		writer.println("# HELP " + name + " " + help);
+		writer.println("# TYPE " + name + " counter");
+		writer.println(name + " " + value);
+	}
+
+	/**
+	 * Writes a gauge.
+	 */
+	public static void writeGauge(PrintWriter writer, String name,
+			String help, long value)
+	{
+		writer.println("# HELP " + name + " " + help);
+		writer.println("# TYPE " + name + " gauge");
+		writer.println(name + " " + value);
+	}
+
+	/**
+	 * Histogram with exponential buckets. The upper bound of bucket i is the
+	 * base value times 2^i. Values above the last bound are counted in an
+	 * overflow bucket.
+	 */
+	public static class Histogram
+	{
+
+		/**
+		 * Holds the upper bounds of the buckets.
+		 */
+		protected final long[] bounds;
+
+		/**
+		 * Holds the counts of the buckets plus the overflow bucket.
+		 */
+		protected final LongAdder[] counts;
+
+		/**
+		 * Holds the sum of all values.
+		 */
+		protected final LongAdder sum = new LongAdder();
+
+		/**
+		 * Constructs a histogram with the given number of buckets, starting
+		 * at the given base value.
+		 */
+		public Histogram(long base, int buckets)
+		{
+			bounds = new long[buckets];
+			counts = new LongAdder[buckets + 1];
+
+			for (int i = 0; i < buckets; i++)
+			{
+				bounds[i] = base << i;
+			}
+
+			for (int i = 0; i < counts.length; i++)
+			{
+				counts[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records the given value.
+		 */
+		public void record(long value)
+		{
+			int i = 0;
+
+			while (i < bounds.length && value > bounds[i])
+			{
+				i++;
+			}
+
+			counts[i].increment();
+			sum.add(value);
+		}
+
+		/**
+		 * Returns the number of recorded values.
+		 */
+		public long getCount()
+		{
+			long result = 0;
+
+			for (LongAdder count : counts)
+			{
+				result += count.sum();
+			}
+
+			return result;
+		}
+
+		/**
+		 * Returns the sum of the recorded values.
+		 */
+		public long getSum()
+		{
+			return sum.sum();
+		}
+
+		/**
+		 * Returns the upper bound of the bucket that contains the given
+		 * percentile (0-100) or -1 if no values were recorded. Values in the
+		 * overflow bucket are reported as Long.MAX_VALUE.
+		 */
+		public long getPercentile(double percentile)
+		{
+			long total = getCount();
+
+			if (total == 0)
+			{
+				return -1;
+			}
+
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+
+			for (int i = 0; i < bounds.length; i++)
+			{
+				seen += counts[i].sum();
+
+				if (seen >= rank)
+				{
+					return bounds[i];
+				}
+			}
+
+			return Long.MAX_VALUE;
+		}
+
+		/**
+		 * Writes this histogram in the Prometheus text format. The values are
+		 * multiplied by the given scale.
+		 */
+		public void write(PrintWriter writer, String name, String help,
+				double scale)
+		{
+			writer.println("# HELP " + name + " " + help);
+			writer.println("# TYPE " + name + " histogram");
+			long cumulative = 0;
+
+			for (int i = 0; i < bounds.length; i++)
+			{
+				cumulative += counts[i].sum();
+				writer.println(name + "_bucket{le=\"" + (bounds[i] * scale)
+						+ "\"} " + cumulative);
+			}
+
+			cumulative += counts[bounds.length].sum();
+			writer.println(name + "_bucket{le=\"+Inf\"} " + cumulative);
+			writer.println(name + "_sum " + (sum.sum() * scale));
+			writer.println(name + "_count " + cumulative);
+		}
+
+	}
+
+}
@@ -8,29 +8,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.cache.Cache;
 import javax.cache.CacheException;
-import javax.cache.CacheFactory;
-import javax.cache.CacheManager;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.memcache.Stats;
-import com.google.appengine.api.memcache.stdimpl.GCacheFactory;
+import com.google.appengine.api.utils.SystemProperty;
 import com.pusher.rest.Pusher;
 
 /**
@@ -65,41 +58,171 @@ public class CacheServlet extends HttpServlet
 	 */
 	protected static final int maxCacheSize = 1000000;
 
+	/**
+	 * Maximum estimated size (in bytes) of the in-process patch store.
+	 */
+	protected static final long maxStoreSize = 64L * 1024 * 1024;
+
+	/**
+	 * Maximum total size (in bytes) of the POST requests that are being
+	 * processed. Further requests are rejected until the size drops. A
+	 * larger request is admitted if no other requests are pending.
+	 */
+	protected static final long maxPendingSize = 16L * 1024 * 1024;
+
+	/**
+	 * Number of POST requests per second for a diagram and client address.
+	 */
+	protected static final double patchRate = 10;
+
+	/**
+	 * Number of POST requests that may exceed the rate in a burst.
+	 */
+	protected static final double patchBurst = 50;
+
+	/**
+	 * Number of request bytes that cost an additional token.
+	 */
+	protected static final int tokenSize = 100000;
+
+	/**
+	 * Maximum number of keys in the rate limiter.
+	 */
+	protected static final int maxRateLimiterKeys = 100000;
+
+	/**
+	 * Status code for rate limited requests.
+	 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Name of the init parameter that selects the patch store. Use memcache
+	 * to share patches between instances on App Engine or memory for an
+	 * in-process store. Default is memcache on App Engine and memory
+	 * otherwise.
+	 */
+	public static final String PATCH_STORE_PARAM = "patchStore";
+
 	/**
 	 * Path component under war/ to locate iconfinder_key file.
 	 */
 	protected static Pusher pusher = null;
 
 	/**
-	 * Path component under war/ to locate iconfinder_key file.
+	 * Holds the outbound queue for Pusher events.
 	 */
-	protected static Cache cache;
+	protected static PusherQueue pusherQueue = null;
 
-	static
+	/**
+	 * Holds the store for the patches.
+	 */
+	protected PatchStore store;
+
+	/**
+	 * Holds the recent patches of each diagram for broken chains.
+	 */
+	protected PatchRing history = new PatchRing();
+
+	/**
+	 * Holds the clients that wait for changes.
+	 */
+	protected PatchSubscriptions subscriptions = new PatchSubscriptions();
+
+	/**
+	 * Holds the counters and histograms for the metrics.
+	 */
+	protected CacheMetrics metrics = new CacheMetrics();
+
+	/**
+	 * Limits the rate of POST requests per diagram and client address.
+	 */
+	protected RateLimiter limiter = new RateLimiter(patchRate, patchBurst,
+			maxRateLimiterKeys);
+
+	/**
+	 * Total size of the POST requests that are being processed.
+	 */
+	protected AtomicLong pendingSize = new AtomicLong();
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public CacheServlet()
 	{
-		try
+		super();
+	};
+
+	/**
+	 * @see HttpServlet#init()
+	 */
+	public void init() throws ServletException
+	{
+		super.init();
+		store = createPatchStore(getInitParameter(PATCH_STORE_PARAM));
+	}
+
+	/**
+	 * @see HttpServlet#destroy()
+	 */
+	public void destroy()
+	{
+		synchronized (CacheServlet.class)
 		{
-			CacheFactory cacheFactory = CacheManager.getInstance()
-					.getCacheFactory();
-			Map<Object, Object> properties = new HashMap<>();
-			properties.put(MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT,
-					true);
-			properties.put(GCacheFactory.EXPIRATION_DELTA, expirationDelta);
-			cache = cacheFactory.createCache(properties);
+			if (pusherQueue != null)
+			{
+				pusherQueue.shutdown();
+				pusherQueue = null;
+			}
 		}
-		catch (CacheException e)
+
+		super.destroy();
+	}
+
+	/**
+	 * Returns the queue for sending events to Pusher.
+	 */
+	protected PusherQueue getPusherQueue() throws IOException
+	{
+		synchronized (CacheServlet.class)
 		{
-			e.printStackTrace();
+			if (pusherQueue == null)
+			{
+				pusherQueue = new PusherQueue(getPusher());
+			}
+
+			return pusherQueue;
 		}
 	}
 
 	/**
-	 * @see HttpServlet#HttpServlet()
+	 * Creates the patch store for the given name.
 	 */
-	public CacheServlet()
+	protected PatchStore createPatchStore(String name) throws ServletException
 	{
-		super();
-	};
+		if (name == null)
+		{
+			// Instances of App Engine must share the patches
+			name = (SystemProperty.environment.get() != null) ? "memcache"
+					: "memory";
+		}
+
+		if (name.equals("memcache"))
+		{
+			try
+			{
+				return new MemcachePatchStore(expirationDelta);
+			}
+			catch (CacheException e)
+			{
+				throw new ServletException(e);
+			}
+		}
+		else
+		{
+			return new MemoryPatchStore(expirationDelta, maxStoreSize,
+					maxCacheSize);
+		}
+	}
 
 	/**
 	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
@@ -147,11 +270,28 @@ public class CacheServlet extends HttpServlet
 		try
 		{
 			String qs = request.getQueryString();
-			String ref = request.getHeader("referer");
+			String dom = OriginPolicy.DRAW_IO
+					.getOrigin(request.getHeader("referer"));
 			boolean stats = qs != null && qs.equals("stats");
+			boolean prometheus = qs != null && qs.equals("metrics");
 
-			if (stats || (ref != null && ref.toLowerCase()
-					.matches("https?://([a-z0-9,-]+[.])*draw[.]io/.*")))
+			if (prometheus)
+			{
+				response.setCharacterEncoding("UTF-8");
+				response.setContentType(CacheMetrics.CONTENT_TYPE);
+				response.setStatus(HttpServletResponse.SC_OK);
+				PrintWriter writer = response.getWriter();
+				metrics.write(writer, pusherQueue, subscriptions);
+				writer.flush();
+				writer.close();
+			}
+			else if (!stats && request.getParameter("subscribe") != null
+					&& dom != null)
+			{
+				response.addHeader("Access-Control-Allow-Origin", dom);
+				subscribe(request, response);
+			}
+			else if (stats || dom != null)
 			{
 				PrintWriter writer = response.getWriter();
 				response.setCharacterEncoding("UTF-8");
@@ -160,26 +300,18 @@ public class CacheServlet extends HttpServlet
 				{
 					response.setContentType("text/plain");
 
-					Stats s = MemcacheServiceFactory.getMemcacheService()
-							.getStatistics();
-					writer.println("timestamp: " + new Date().toString());
-					writer.println("hit count: " + s.getHitCount());
-					writer.println("miss count: " + s.getMissCount());
-					writer.println("item count: " + s.getItemCount());
-					writer.println(
-							"total item bytes: " + s.getTotalItemBytes());
-					writer.println("bytes returned for hits: "
-							+ s.getBytesReturnedForHits());
-					writer.println("max time without access: "
-							+ s.getMaxTimeWithoutAccess());
+					store.writeStats(writer);
+
+					if (pusherQueue != null)
+					{
+						pusherQueue.writeStats(writer);
+					}
 
 					response.setStatus(HttpServletResponse.SC_OK);
 				}
 				else
 				{
-					response.addHeader("Access-Control-Allow-Origin",
-							ref.toLowerCase().substring(0,
-									ref.indexOf(".draw.io/") + 8));
+					response.addHeader("Access-Control-Allow-Origin", dom);
 
 					// Disables wire-compression
 					response.setContentType("application/octet-stream");
@@ -187,16 +319,25 @@ public class CacheServlet extends HttpServlet
 
 					if (id != null)
 					{
+						long t0 = System.nanoTime();
+
 						try
 						{
-							writer.print(getPatches(id, request));
+							List<CacheEntry> entries = getPatches(id, request);
 							response.setStatus(HttpServletResponse.SC_OK);
+							writePatches(entries, writer);
 						}
 						catch (UnauthorizedException e)
 						{
+							metrics.unauthorized.increment();
 							response.setStatus(
 									HttpServletResponse.SC_UNAUTHORIZED);
 						}
+						finally
+						{
+							metrics.patchLatency
+									.record((System.nanoTime() - t0) / 1000);
+						}
 					}
 					else
 					{
@@ -219,60 +360,120 @@ public class CacheServlet extends HttpServlet
 	}
 
 	/**
-	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 * Adds the request as a subscriber for changes of the diagram with the
+	 * given ID. Use subscribe=sse for a stream of server-sent events and any
+	 * other value for a long-poll request that returns the first event.
+	 */
+	protected void subscribe(HttpServletRequest request,
+			HttpServletResponse response) throws IOException
+	{
+		String id = request.getParameter("id");
+
+		if (id == null)
+		{
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		}
+		else if (!request.isAsyncSupported())
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
+		}
+		else
+		{
+			AsyncContext context = request.startAsync();
+
+			if (!subscriptions.subscribe(id, request.getParameter("secret"),
+					request.getParameter("sid"), context,
+					request.getParameter("subscribe").equals("sse")))
+			{
+				response.setStatus(
+						HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				context.complete();
+			}
+			else
+			{
+				debug("subscribe id=" + id);
+			}
+		}
+	}
+
+	/**
+	 * Returns the entries of the patch chain for the given request. The
+	 * secret is checked against the last entry of the chain.
 	 */
-	protected String getPatches(String id, HttpServletRequest request)
-			throws UnauthorizedException
+	protected List<CacheEntry> getPatches(String id,
+			HttpServletRequest request) throws UnauthorizedException
 	{
 		String from = request.getParameter("from");
 		String to = request.getParameter("to");
 		String secret = request.getParameter("secret");
-		String data = "[]";
+		List<CacheEntry> entries = Collections.emptyList();
 
 		if (from != null && to != null)
 		{
-			List<String> values = new ArrayList<String>();
-			HashSet<String> seen = new HashSet<String>();
-			String current = from;
+			entries = store.getChain(id, from, to);
 
-			while (!seen.contains(current))
+			// Falls back to the recent patches if the chain is broken
+			if (entries.isEmpty())
 			{
-				CacheEntry entry = (CacheEntry) cache.get(id + ":" + current);
+				entries = history.getChain(id, from, to);
+			}
 
-				if (entry != null)
-				{
-					seen.add(current);
-					current = entry.getEtag();
-					values.add("\"" + entry.getData() + "\"");
+			if (entries.size() > 0)
+			{
+				CacheEntry last = entries.get(entries.size() - 1);
 
-					if (current.equals(to))
-					{
-						// Compares secret
-						if (entry.getSecret() != null
-								&& !entry.getSecret().equals(secret))
-						{
-							throw new UnauthorizedException();
-						}
-						else
-						{
-							break;
-						}
-					}
-				}
-				else
+				// Compares secret
+				if (last.getEtag().equals(to) && last.getSecret() != null
+						&& !last.getSecret().equals(secret))
 				{
-					values.clear();
-					break;
+					throw new UnauthorizedException();
 				}
 			}
+		}
 
-			data = "[" + String.join(",", values) + "]";
+		if (entries.isEmpty())
+		{
+			metrics.emptyChains.increment();
 		}
 
-		debug("getPatches id=" + id + " from=" + from + " to=" + to + " data="
-				+ data);
+		metrics.chainLength.record(entries.size());
+		debug("getPatches id=" + id + " from=" + from + " to=" + to
+				+ " count=" + entries.size());
 
-		return data;
+		return entries;
+	}
+
+	/**
+	 * Writes the given entries as a JSON array of strings to the given
+	 * writer. Each entry is written directly to the writer so that no copy
+	 * of the complete response is created and the container can send large
+	 * responses in chunks.
+	 */
+	protected void writePatches(List<CacheEntry> entries, Writer writer)
+			throws IOException
+	{
+		long bytes = 2;
+		writer.write('[');
+
+		for (int i = 0; i < entries.size(); i++)
+		{
+			if (i > 0)
+			{
+				writer.write(',');
+				bytes++;
+			}
+
+			String data = entries.get(i).getData();
+			writer.write('"');
+			writer.write(data);
+			writer.write('"');
+
+			// Data is base64 so each char is one byte
+			bytes += data.length() + 2;
+		}
+
+		writer.write(']');
+		metrics.bytesServed.add(bytes);
 	}
 
 	/**
@@ -281,30 +482,62 @@ public class CacheServlet extends HttpServlet
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException
 	{
-		try
+		String dom = OriginPolicy.DRAW_IO
+				.getOrigin(request.getHeader("referer"));
+
+		// Allows the client to read the status of all responses
+		if (dom != null)
+		{
+			response.addHeader("Access-Control-Allow-Origin", dom);
+		}
+
+		// Reserves the request size before the parameters are parsed. A
+		// single request is always admitted if nothing else is pending.
+		long size = request.getContentLength();
+		size = (size >= 0) ? size : maxCacheSize;
+		long pending = pendingSize.addAndGet(size);
+
+		if (pending > maxPendingSize && pending > size)
 		{
-			String ref = request.getHeader("referer");
+			pendingSize.addAndGet(-size);
+			metrics.rateLimited.increment();
+			response.setHeader("Retry-After", "1");
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+			return;
+		}
 
-			if (ref != null && ref.toLowerCase()
-					.matches("https?://([a-z0-9,-]+[.])*draw[.]io/.*"))
+		try
+		{
+			if (dom != null)
 			{
 				String id = request.getParameter("id");
 
 				if (id != null)
 				{
-					response.addHeader("Access-Control-Allow-Origin",
-							ref.toLowerCase().substring(0,
-									ref.indexOf(".draw.io/") + 8));
+					long wait = limiter.acquire(
+							id + " " + request.getRemoteAddr(),
+							1 + size / (double) tokenSize);
 
-					sendMessage(id, request);
-					addPatch(id, request);
+					if (wait > 0)
+					{
+						metrics.rateLimited.increment();
+						response.setHeader("Retry-After",
+								String.valueOf((wait + 999) / 1000));
+						response.setStatus(SC_TOO_MANY_REQUESTS);
+					}
+					else
+					{
+						sendMessage(id, request);
+						addPatch(id, request);
 
-					PrintWriter writer = response.getWriter();
-					writer.println("<ok/>");
-					writer.flush();
-					writer.close();
+						PrintWriter writer = response.getWriter();
+						writer.println("<ok/>");
+						writer.flush();
+						writer.close();
 
-					response.setStatus(HttpServletResponse.SC_OK);
+						response.setStatus(HttpServletResponse.SC_OK);
+					}
 				}
 				else
 				{
@@ -320,6 +553,10 @@ public class CacheServlet extends HttpServlet
 		{
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 		}
+		finally
+		{
+			pendingSize.addAndGet(-size);
+		}
 	}
 
 	/**
@@ -335,7 +572,11 @@ public class CacheServlet extends HttpServlet
 		if (from != null && to != null && data != null
 				&& data.length() < maxCacheSize)
 		{
-			cache.put(id + ":" + from, new CacheEntry(to, data, secret));
+			CacheEntry entry = new CacheEntry(to, data, secret);
+			store.put(id, from, entry);
+			history.add(id, from, entry);
+			subscriptions.publishPatch(id, from, entry);
+			metrics.patchesAdded.increment();
 			debug("addPatch id=" + id + " from=" + from + " to=" + to + " data="
 					+ data);
 		}
@@ -352,7 +593,8 @@ public class CacheServlet extends HttpServlet
 		if (msg != null)
 		{
 			String sid = request.getParameter("sid");
-			getPusher().trigger(id, "changed", msg, sid);
+			subscriptions.publishMessage(id, msg, sid);
+			getPusherQueue().trigger(id, "changed", msg, sid);
 			debug("sendMessage id=" + id + " msg=" + msg);
 		}
 	}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.mxgraph.online.Utils.UnsupportedContentException;
+
+/**
+ * Detects the type of content from its first bytes. The known signatures
+ * (magic bytes) are kept in a prefix trie so that the head of the content is
+ * scanned once regardless of the number of signatures. Signatures may
+ * contain wildcards for bytes that are not checked.
+ *
+ * See https://www.garykessler.net/library/file_sigs.html and
+ * https://en.wikipedia.org/wiki/List_of_file_signatures
+ */
+public class ContentSniffer
+{
+
+	/**
+	 * Number of bytes that are required for detecting the content type.
+	 */
+	public static final int HEAD_SIZE = 16;
+
+	/**
+	 * Marks a byte in a signature that matches any value.
+	 */
+	protected static final int ANY = -1;
+
+	/**
+	 * Holds the root of the signature trie.
+	 */
+	protected static final Node root = new Node();
+
+	static
+	{
+		// text/html
+		add("text/html", "<!");
+		add("text/html", "<html");
+		add("text/html", "<head");
+		add("text/html", "<body");
+		add("text/html", "<HTML");
+		add("text/html", "<HEAD");
+		add("text/html", "<BODY");
+		add("text/html", "<DOCTYPE");
+
+		// application/xml with UTF-8, UTF-16 and UTF-32 byte order marks
+		add("application/xml", "<?xml ");
+		add("application/xml", "\u00ef\u00bb\u00bf<?x");
+		add("application/xml", "\u00fe\u00ff\0<\0?\0x");
+		add("application/xml", "\u00ff\u00fe<\0?\0x\0");
+		add("application/xml", "\0\0\u00fe\u00ff\0\0\0<\0\0\0?\0\0\0x");
+		add("application/xml", "\u00ff\u00fe\0\0<\0\0\0?\0\0\0x\0\0\0");
+
+		// mxfile, mxlibrary, mxGraphModel
+		add("application/xml", "<mx");
+
+		// images
+		add("image/gif", "GIF8");
+		add("image/x-xbitmap", "#def");
+		add("image/x-xpixmap", "! XPM2");
+		add("image/png", "\u0089PNG\r\n\u001a\n");
+		add("image/jpeg", "\u00ff\u00d8\u00ff\u00e0");
+		add("image/jpeg", "\u00ff\u00d8\u00ff\u00ee");
+
+		// Exif format used by digital cameras, see
+		// http://www.pima.net/standards/it10/PIMA15740/Exif_2-1.PDF
+		add("image/jpeg", concat(toSignature("\u00ff\u00d8\u00ff\u00e1"),
+				new int[] { ANY, ANY }, toSignature("Exif\0")));
+
+		// fonts
+		// TODO: Add check for .eot fonts
+		add("font/ttf", "\0\u0001\0\0\0");
+		add("font/otf", "OZTO\0");
+		add("font/woff", "wOFF");
+		add("font/woff2", "wOF2");
+
+		// vsdx, vssx (also zip, jar, odt, ods, odp, docx, xlsx, pptx, apk, aar)
+		add("application/zip", "PK\u0003\u0004");
+		add("application/zip", "PK\u0003\u0006");
+
+		// vsd, ppt
+		add("application/x-ole-storage",
+				"\u00d0\u00cf\u0011\u00e0\u00a1\u00b1\u001a\u00e1");
+
+		// Gliffy, Lucidchart
+		add("application/json", "{\"contentType\":");
+		add("application/json", "{\"state\":");
+	}
+
+	/**
+	 * Adds the given signature for the given type.
+	 */
+	protected static void add(String type, String signature)
+	{
+		add(type, toSignature(signature));
+	}
+
+	/**
+	 * Adds the given signature for the given type.
+	 */
+	protected static void add(String type, int[] signature)
+	{
+		Node node = root;
+
+		for (int b : signature)
+		{
+			node = node.getOrCreate(b);
+		}
+
+		node.type = type;
+	}
+
+	/**
+	 * Returns the signature for the given string where each character is
+	 * one byte.
+	 */
+	protected static int[] toSignature(String value)
+	{
+		int[] result = new int[value.length()];
+
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = value.charAt(i) & 0xff;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the concatenation of the given signatures.
+	 */
+	protected static int[] concat(int[]... parts)
+	{
+		int len = 0;
+
+		for (int[] part : parts)
+		{
+			len += part.length;
+		}
+
+		int[] result = new int[len];
+		int off = 0;
+
+		for (int[] part : parts)
+		{
+			System.arraycopy(part, 0, result, off, part.length);
+			off += part.length;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the type of the content that starts with the remaining bytes
+	 * of the given buffer or null if no signature matches. The position of
+	 * the buffer is not changed.
+	 */
+	public static String detect(ByteBuffer head)
+	{
+		return root.match(head, head.position());
+	}
+
+	/**
+	 * Returns the type of the content of the given stream without consuming
+	 * any bytes or null if no signature matches or the content is shorter
+	 * than the head size. The stream must support mark and reset.
+	 */
+	public static String peek(InputStream is) throws IOException
+	{
+		byte[] head = new byte[HEAD_SIZE];
+		int len = 0;
+		is.mark(HEAD_SIZE);
+
+		try
+		{
+			int n = 0;
+
+			while (len < head.length
+					&& (n = is.read(head, len, head.length - len)) >= 0)
+			{
+				len += n;
+			}
+		}
+		finally
+		{
+			is.reset();
+		}
+
+		return (len == HEAD_SIZE) ? detect(ByteBuffer.wrap(head)) : null;
+	}
+
+	/**
+	 * Returns the type of the content of the given stream without consuming
+	 * any bytes. Throws an exception if the type is unknown. The stream
+	 * must support mark and reset.
+	 */
+	public static String check(InputStream is)
+			throws IOException, UnsupportedContentException
+	{
+		String type = peek(is);
+
+		if (type == null)
+		{
+			throw new UnsupportedContentException();
+		}
+
+		return type;
+	}
+
+	/**
+	 * Node in the signature trie.
+	 */
+	protected static class Node
+	{
+
+		/**
+		 * Maps from byte values to child nodes.
+		 */
+		Node[] next = null;
+
+		/**
+		 * Child node for any byte value.
+		 */
+		Node any = null;
+
+		/**
+		 * Type for the signature that ends in this node.
+		 */
+		String type = null;
+
+		Node getOrCreate(int b)
+		{
+			if (b == ANY)
+			{
+				if (any == null)
+				{
+					any = new Node();
+				}
+
+				return any;
+			}
+
+			if (next == null)
+			{
+				next = new Node[256];
+			}
+
+			if (next[b] == null)
+			{
+				next[b] = new Node();
+			}
+
+			return next[b];
+		}
+
+		/**
+		 * Returns the type of the first signature that matches the given
+		 * buffer starting at the given index.
+		 */
+		String match(ByteBuffer buffer, int index)
+		{
+			if (type != null)
+			{
+				return type;
+			}
+			else if (index >= buffer.limit())
+			{
+				return null;
+			}
+
+			String result = null;
+
+			if (next != null)
+			{
+				Node child = next[buffer.get(index) & 0xff];
+
+				if (child != null)
+				{
+					result = child.match(buffer, index + 1);
+				}
+			}
+
+			if (result == null && any != null)
+			{
+				result = any.match(buffer, index + 1);
+			}
+
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,977 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Extracts the diagram that is embedded in SVG, HTML and PDF exports. The
+ * format is detected from the start of the file which is then scanned as a
+ * stream until the diagram is found, so the file is never parsed into a DOM.
+ * The diagram is returned as a string of ISO-8859-1 characters for its bytes
+ * as for other uploaded files.
+ */
+public class DiagramExtractor
+{
+
+	/**
+	 * Number of bytes at the start of a file that are used to detect the
+	 * format.
+	 */
+	public static final int HEAD_SIZE = 1024;
+
+	/**
+	 * Maximum number of bytes that are kept for the dictionary of a PDF
+	 * object.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of bytes of a decoded PDF stream.
+	 */
+	public static final int MAX_DECODED_SIZE = Constants.MAX_REQUEST_SIZE;
+
+	/**
+	 * Attribute of the root element of SVG exports that contains the diagram.
+	 */
+	public static final String SVG_ATTRIBUTE = "content";
+
+	/**
+	 * Attribute of HTML exports that contains the viewer configuration with
+	 * the diagram in the xml property.
+	 */
+	public static final String HTML_ATTRIBUTE = "data-mxgraph";
+
+	public static final String HTML_PROPERTY = "xml";
+
+	/**
+	 * Keywords that are searched for in the stream.
+	 */
+	protected static final byte[] PDF_SIGNATURE = { '%', 'P', 'D', 'F', '-' };
+
+	protected static final byte[] ENDSTREAM = { 'e', 'n', 'd', 's', 't',
+			'r', 'e', 'a', 'm' };
+
+	protected static final byte[] COMMENT_START = { '-', '-' };
+
+	protected static final byte[] COMMENT_END = { '-', '-', '>' };
+
+	protected static final byte[] TAG_END = { '>' };
+
+	/**
+	 * Patterns for the entries of the dictionary of a PDF stream.
+	 */
+	protected static final Pattern PDF_EMBEDDED_FILE = Pattern
+			.compile("/Type\\s*/EmbeddedFile(?![^\\s()<>\\[\\]{}/%])");
+
+	protected static final Pattern PDF_LENGTH = Pattern
+			.compile("/Length\\s+(\\d{1,15})(\\s+\\d+\\s+R)?");
+
+	protected static final Pattern PDF_FILTER = Pattern
+			.compile("/Filter\\s*(\\[\\s*)?/([^\\s()<>\\[\\]{}/%]+)\\s*(\\])?");
+
+	/**
+	 * Returns the diagram that is embedded in the given SVG, HTML or PDF file
+	 * or null if the file is in another format or contains no diagram.
+	 */
+	public static String extract(InputStream in) throws IOException
+	{
+		if (!in.markSupported())
+		{
+			in = new BufferedInputStream(in);
+		}
+
+		byte[] data = null;
+
+		if (startsWith(in, PDF_SIGNATURE))
+		{
+			data = extractFromPdf(in);
+		}
+		else
+		{
+			String head = peek(in, HEAD_SIZE);
+			String lower = head.toLowerCase(Locale.ENGLISH);
+
+			if (lower.contains("<html") || lower.contains("<!doctype html"))
+			{
+				data = extractFromHtml(in);
+			}
+			else if (head.contains("<svg"))
+			{
+				data = extractFromSvg(in);
+			}
+		}
+
+		return (data != null) ? new String(data, StandardCharsets.ISO_8859_1)
+				: null;
+	}
+
+	/**
+	 * Returns true if the given bytes start with a diagram.
+	 */
+	protected static boolean isDiagram(byte[] data)
+	{
+		String head = new String(data, 0, Math.min(data.length, HEAD_SIZE),
+				StandardCharsets.ISO_8859_1);
+
+		return head.contains("<mxfile") || head.contains("<mxGraphModel");
+	}
+
+	/**
+	 * Returns the diagram in the content attribute of the root element. The
+	 * rest of the file is not read.
+	 */
+	protected static byte[] extractFromSvg(InputStream in) throws IOException
+	{
+		MarkupScanner scanner = new MarkupScanner(in);
+
+		if ("svg".equals(scanner.nextTag()))
+		{
+			String name = null;
+
+			while ((name = scanner.nextAttribute()) != null)
+			{
+				if (name.equals(SVG_ATTRIBUTE))
+				{
+					byte[] data = IOUtils.toByteArray(scanner.openValue());
+
+					return (isDiagram(data)) ? data : null;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the diagram in the first data-mxgraph attribute that contains
+	 * a diagram. Script and style elements are skipped.
+	 */
+	protected static byte[] extractFromHtml(InputStream in) throws IOException
+	{
+		MarkupScanner scanner = new MarkupScanner(in);
+		String tag = null;
+
+		while ((tag = scanner.nextTag()) != null)
+		{
+			String name = null;
+
+			while ((name = scanner.nextAttribute()) != null)
+			{
+				if (name.equals(HTML_ATTRIBUTE))
+				{
+					byte[] data = readJsonProperty(scanner.openValue(),
+							HTML_PROPERTY);
+
+					if (data != null && isDiagram(data))
+					{
+						return data;
+					}
+				}
+			}
+
+			if (tag.equals("script") || tag.equals("style"))
+			{
+				skipTo(in, ("</" + tag).getBytes(StandardCharsets.US_ASCII),
+						true, null);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the first embedded file stream that contains a diagram. The
+	 * dictionary of each object is kept until its stream starts and streams
+	 * of other objects are skipped using their length.
+	 */
+	protected static byte[] extractFromPdf(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream dict = new ByteArrayOutputStream();
+		StringBuilder word = new StringBuilder();
+		int c = 0;
+
+		while ((c = in.read()) >= 0)
+		{
+			if (isPdfRegular(c))
+			{
+				// Only short words are compared
+				if (word.length() <= ENDSTREAM.length)
+				{
+					word.append((char) c);
+				}
+			}
+			else
+			{
+				if (word.length() == 3 && word.toString().equals("obj"))
+				{
+					dict.reset();
+				}
+				else if (word.length() == 6 && word.toString().equals("stream"))
+				{
+					// Stream data starts after CRLF or LF
+					if (c == '\r')
+					{
+						in.mark(1);
+
+						if (in.read() != '\n')
+						{
+							in.reset();
+						}
+					}
+
+					byte[] data = readPdfStream(in,
+							dict.toString(StandardCharsets.ISO_8859_1.name()));
+					dict.reset();
+					word.setLength(0);
+
+					if (data != null && isDiagram(data))
+					{
+						return data;
+					}
+
+					continue;
+				}
+
+				word.setLength(0);
+			}
+
+			// Drops dictionaries that are too large to be of interest
+			if (dict.size() >= MAX_DICTIONARY_SIZE)
+			{
+				dict.reset();
+			}
+
+			dict.write(c);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads the data of the stream with the given dictionary if it is an
+	 * embedded file and returns the decoded data. Other streams, streams
+	 * with unsupported filters and streams that cannot be decoded or are
+	 * larger than the maximum decoded size are skipped and null is returned.
+	 */
+	protected static byte[] readPdfStream(InputStream in, String dict)
+			throws IOException
+	{
+		Matcher length = PDF_LENGTH.matcher(dict);
+		long size = (length.find() && length.group(2) == null)
+				? Long.parseLong(length.group(1)) : -1;
+
+		if (!PDF_EMBEDDED_FILE.matcher(dict).find())
+		{
+			if (size >= 0)
+			{
+				IOUtils.skip(in, size);
+			}
+			else
+			{
+				skipTo(in, ENDSTREAM, false, null);
+			}
+
+			return null;
+		}
+
+		byte[] data = null;
+
+		if (size >= 0)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copyLarge(in, out, 0, size);
+			data = out.toByteArray();
+		}
+		else
+		{
+			// Indirect length so the data ends before the keyword
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			skipTo(in, ENDSTREAM, false, out);
+			data = out.toByteArray();
+			int end = Math.max(0, data.length - ENDSTREAM.length);
+
+			if (end > 0 && data[end - 1] == '\n')
+			{
+				end--;
+			}
+
+			if (end > 0 && data[end - 1] == '\r')
+			{
+				end--;
+			}
+
+			data = Arrays.copyOf(data, end);
+		}
+
+		Matcher filter = PDF_FILTER.matcher(dict);
+
+		if (filter.find())
+		{
+			// Only a single FlateDecode filter is supported
+			if (!filter.group(2).equals("FlateDecode")
+					|| (filter.group(1) != null && filter.group(3) == null))
+			{
+				return null;
+			}
+
+			try (InputStream inflater = new InflaterInputStream(
+					new ByteArrayInputStream(data)))
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+				if (IOUtils.copyLarge(inflater, out, 0,
+						MAX_DECODED_SIZE + 1L) > MAX_DECODED_SIZE)
+				{
+					return null;
+				}
+
+				data = out.toByteArray();
+			}
+			catch (IOException e)
+			{
+				// Corrupt or truncated data in memory, eg. EOFException
+				return null;
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Returns true if the given byte is a regular character in PDF.
+	 */
+	protected static boolean isPdfRegular(int c)
+	{
+		return c > ' ' && c < 127 && "()<>[]{}/%".indexOf(c) < 0;
+	}
+
+	/**
+	 * Returns the value of the given top-level string property of the JSON
+	 * object in the given stream or null if the property does not exist or
+	 * is not a string. The rest of the stream is not read if the property
+	 * is found.
+	 */
+	protected static byte[] readJsonProperty(InputStream in, String key)
+			throws IOException
+	{
+		int depth = 0;
+		boolean expectKey = false;
+		int c = in.read();
+
+		while (c >= 0)
+		{
+			if (c == '"')
+			{
+				if (depth == 1 && expectKey)
+				{
+					ByteArrayOutputStream name = new ByteArrayOutputStream();
+					readJsonString(in, name);
+					expectKey = false;
+					c = skipJsonWhitespace(in);
+
+					if (c == ':')
+					{
+						c = skipJsonWhitespace(in);
+
+						if (c == '"' && key.equals(
+								name.toString(StandardCharsets.UTF_8.name())))
+						{
+							ByteArrayOutputStream value = new ByteArrayOutputStream();
+							readJsonString(in, value);
+
+							return value.toByteArray();
+						}
+					}
+
+					// Handles the first character of the value
+					continue;
+				}
+
+				readJsonString(in, null);
+			}
+			else if (c == '{' || c == '[')
+			{
+				depth++;
+				expectKey = depth == 1 && c == '{';
+			}
+			else if (c == '}' || c == ']')
+			{
+				if (--depth <= 0)
+				{
+					return null;
+				}
+			}
+			else if (c == ',' && depth == 1)
+			{
+				expectKey = true;
+			}
+
+			c = in.read();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the next character in the given stream that is not JSON
+	 * whitespace.
+	 */
+	protected static int skipJsonWhitespace(InputStream in) throws IOException
+	{
+		int c = in.read();
+
+		while (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+		{
+			c = in.read();
+		}
+
+		return c;
+	}
+
+	/**
+	 * Reads the rest of a JSON string after the opening quote and writes the
+	 * UTF-8 bytes of the unescaped string to the given output stream. Bytes
+	 * that are not escaped are written as is. If the output stream is null
+	 * then the string is skipped.
+	 */
+	protected static void readJsonString(InputStream in, OutputStream out)
+			throws IOException
+	{
+		// Consecutive unicode escapes may be surrogate pairs
+		StringBuilder escaped = new StringBuilder();
+		int c = 0;
+
+		while ((c = in.read()) >= 0 && c != '"')
+		{
+			if (c == '\\')
+			{
+				c = in.read();
+
+				if (c == 'u')
+				{
+					int ch = 0;
+
+					for (int i = 0; i < 4; i++)
+					{
+						int digit = Character.digit(in.read(), 16);
+
+						if (digit < 0)
+						{
+							throw new IOException("Invalid JSON escape");
+						}
+
+						ch = (ch << 4) | digit;
+					}
+
+					escaped.append((char) ch);
+
+					continue;
+				}
+				else if (c == 'n')
+				{
+					c = '\n';
+				}
+				else if (c == 'r')
+				{
+					c = '\r';
+				}
+				else if (c == 't')
+				{
+					c = '\t';
+				}
+				else if (c == 'b')
+				{
+					c = '\b';
+				}
+				else if (c == 'f')
+				{
+					c = '\f';
+				}
+				else if (c < 0)
+				{
+					break;
+				}
+			}
+
+			if (out != null)
+			{
+				writeEscaped(escaped, out);
+				out.write(c);
+			}
+		}
+
+		if (out != null)
+		{
+			writeEscaped(escaped, out);
+		}
+	}
+
+	/**
+	 * Writes the UTF-8 bytes of the given unicode escapes and clears the
+	 * given buffer.
+	 */
+	protected static void writeEscaped(StringBuilder escaped, OutputStream out)
+			throws IOException
+	{
+		if (escaped.length() > 0)
+		{
+			out.write(escaped.toString().getBytes(StandardCharsets.UTF_8));
+			escaped.setLength(0);
+		}
+	}
+
+	/**
+	 * Returns true if the given stream starts with the given bytes. The
+	 * stream must support mark and reset.
+	 */
+	protected static boolean startsWith(InputStream in, byte[] prefix)
+			throws IOException
+	{
+		in.mark(prefix.length);
+
+		try
+		{
+			for (int i = 0; i < prefix.length; i++)
+			{
+				if (in.read() != prefix[i])
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+		finally
+		{
+			in.reset();
+		}
+	}
+
+	/**
+	 * Returns the given number of bytes at the start of the given stream as
+	 * ISO-8859-1 characters. The stream must support mark and reset.
+	 */
+	protected static String peek(InputStream in, int size) throws IOException
+	{
+		byte[] head = new byte[size];
+		in.mark(size);
+
+		try
+		{
+			int n = IOUtils.read(in, head);
+
+			return new String(head, 0, n, StandardCharsets.ISO_8859_1);
+		}
+		finally
+		{
+			in.reset();
+		}
+	}
+
+	/**
+	 * Reads the given stream up to and including the given keyword and
+	 * returns true if the keyword was found. The bytes that are read are
+	 * written to the given output stream if it is not null.
+	 */
+	protected static boolean skipTo(InputStream in, byte[] keyword,
+			boolean ignoreCase, OutputStream out) throws IOException
+	{
+		// Lengths of the longest proper prefixes that are also suffixes
+		int[] fallback = new int[keyword.length];
+
+		for (int i = 1, k = 0; i < keyword.length; i++)
+		{
+			while (k > 0 && keyword[i] != keyword[k])
+			{
+				k = fallback[k - 1];
+			}
+
+			if (keyword[i] == keyword[k])
+			{
+				k++;
+			}
+
+			fallback[i] = k;
+		}
+
+		int matched = 0;
+		int c = 0;
+
+		while ((c = in.read()) >= 0)
+		{
+			if (out != null)
+			{
+				out.write(c);
+			}
+
+			if (ignoreCase && c >= 'A' && c <= 'Z')
+			{
+				c += 'a' - 'A';
+			}
+
+			while (matched > 0 && c != keyword[matched])
+			{
+				matched = fallback[matched - 1];
+			}
+
+			if (c == keyword[matched] && ++matched == keyword.length)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Scans the tags and attributes of a markup stream without building a
+	 * tree. Text, comments, declarations, processing instructions and end
+	 * tags are skipped. Names are returned in lower case. The stream must
+	 * support mark and reset.
+	 */
+	protected static class MarkupScanner
+	{
+
+		/**
+		 * Maximum length of the names that are returned.
+		 */
+		public static final int MAX_NAME_LENGTH = 64;
+
+		protected final InputStream in;
+
+		/**
+		 * Holds the value of the current attribute.
+		 */
+		protected AttributeValue value = null;
+
+		MarkupScanner(InputStream in)
+		{
+			this.in = in;
+		}
+
+		/**
+		 * Returns the name of the next start tag or null at the end of the
+		 * stream.
+		 */
+		String nextTag() throws IOException
+		{
+			int c = 0;
+
+			while ((c = in.read()) >= 0)
+			{
+				if (c == '<')
+				{
+					c = read();
+
+					if (Character.isLetter(c))
+					{
+						value = null;
+
+						return readName(c);
+					}
+					else if (c == '!')
+					{
+						if (startsWith(in, COMMENT_START))
+						{
+							skipTo(in, COMMENT_END, false, null);
+						}
+						else
+						{
+							skipTo(in, TAG_END, false, null);
+						}
+					}
+					else if (c == '?' || c == '/')
+					{
+						skipTo(in, TAG_END, false, null);
+					}
+					else
+					{
+						in.reset();
+					}
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Returns the name of the next attribute of the current start tag or
+		 * null at the end of the tag. The value of the previous attribute is
+		 * skipped if it was not read.
+		 */
+		String nextAttribute() throws IOException
+		{
+			if (value != null)
+			{
+				IOUtils.skip(value, Long.MAX_VALUE);
+				value = null;
+			}
+
+			int c = skipWhitespace();
+
+			while (c == '/')
+			{
+				c = skipWhitespace();
+			}
+
+			if (c < 0 || c == '>')
+			{
+				return null;
+			}
+
+			String name = readName(c);
+			c = skipWhitespace();
+
+			if (c == '=')
+			{
+				c = skipWhitespace();
+
+				if (c != '"' && c != '\'')
+				{
+					in.reset();
+					c = -1;
+				}
+
+				value = new AttributeValue(c);
+			}
+			else if (c >= 0)
+			{
+				in.reset();
+			}
+
+			return name;
+		}
+
+		/**
+		 * Returns a stream for the unescaped value of the current attribute.
+		 */
+		InputStream openValue()
+		{
+			return (value != null) ? value
+					: new ByteArrayInputStream(new byte[0]);
+		}
+
+		/**
+		 * Reads the next byte after marking the stream so that it can be
+		 * unread with reset.
+		 */
+		protected int read() throws IOException
+		{
+			in.mark(1);
+
+			return in.read();
+		}
+
+		/**
+		 * Returns the next byte that is not whitespace.
+		 */
+		protected int skipWhitespace() throws IOException
+		{
+			int c = read();
+
+			while (Character.isWhitespace(c))
+			{
+				c = read();
+			}
+
+			return c;
+		}
+
+		/**
+		 * Reads a name that starts with the given character up to whitespace
+		 * or the end of the tag or attribute name.
+		 */
+		protected String readName(int c) throws IOException
+		{
+			StringBuilder name = new StringBuilder();
+
+			while (c >= 0 && !Character.isWhitespace(c) && c != '='
+					&& c != '>' && c != '/')
+			{
+				if (name.length() < MAX_NAME_LENGTH)
+				{
+					name.append(Character.toLowerCase((char) c));
+				}
+
+				c = read();
+			}
+
+			if (c >= 0)
+			{
+				in.reset();
+			}
+
+			return name.toString();
+		}
+
+		/**
+		 * Stream for an attribute value that ends at the given quote or at
+		 * whitespace or the end of the tag if the quote is -1. Character
+		 * references are replaced with their UTF-8 bytes. Unknown entities
+		 * are returned as is.
+		 */
+		protected class AttributeValue extends InputStream
+		{
+
+			/**
+			 * Maximum length of an entity without the ampersand.
+			 */
+			static final int MAX_ENTITY_LENGTH = 10;
+
+			final int quote;
+
+			boolean done = false;
+
+			/**
+			 * Holds the remaining bytes of the last entity.
+			 */
+			byte[] pending = null;
+
+			int pendingPos = 0;
+
+			AttributeValue(int quote)
+			{
+				this.quote = quote;
+			}
+
+			/**
+			 *
+			 */
+			public int read() throws IOException
+			{
+				if (pending != null && pendingPos < pending.length)
+				{
+					return pending[pendingPos++] & 0xff;
+				}
+				else if (done)
+				{
+					return -1;
+				}
+
+				int c = MarkupScanner.this.read();
+
+				if (c < 0 || c == quote || (quote < 0
+						&& (Character.isWhitespace(c) || c == '>')))
+				{
+					if (c == '>')
+					{
+						in.reset();
+					}
+
+					done = true;
+
+					return -1;
+				}
+				else if (c == '&')
+				{
+					pending = readEntity();
+					pendingPos = 0;
+
+					if (pending != null)
+					{
+						return read();
+					}
+				}
+
+				return c;
+			}
+
+			/**
+			 * Returns the bytes for the entity after the ampersand or null if
+			 * the entity is unknown. The stream is reset if null is returned.
+			 */
+			protected byte[] readEntity() throws IOException
+			{
+				StringBuilder name = new StringBuilder();
+				in.mark(MAX_ENTITY_LENGTH + 1);
+				int c = in.read();
+
+				while (c >= 0 && c != ';' && c != quote
+						&& name.length() < MAX_ENTITY_LENGTH)
+				{
+					name.append((char) c);
+					c = in.read();
+				}
+
+				String result = null;
+
+				if (c == ';')
+				{
+					result = decodeEntity(name.toString());
+				}
+
+				if (result == null)
+				{
+					in.reset();
+
+					return null;
+				}
+
+				return result.getBytes(StandardCharsets.UTF_8);
+			}
+
+			/**
+			 * Returns the character for the given entity or null if the
+			 * entity is unknown.
+			 */
+			protected String decodeEntity(String name)
+			{
+				if (name.equals("lt"))
+				{
+					return "<";
+				}
+				else if (name.equals("gt"))
+				{
+					return ">";
+				}
+				else if (name.equals("amp"))
+				{
+					return "&";
+				}
+				else if (name.equals("quot"))
+				{
+					return "\"";
+				}
+				else if (name.equals("apos"))
+				{
+					return "'";
+				}
+				else if (name.startsWith("#"))
+				{
+					try
+					{
+						int cp = (name.startsWith("#x") || name.startsWith("#X"))
+								? Integer.parseInt(name.substring(2), 16)
+								: Integer.parseInt(name.substring(1));
+
+						return new String(Character.toChars(cp));
+					}
+					catch (IllegalArgumentException e)
+					{
+						// ignore invalid character references
+					}
+				}
+
+				return null;
+			}
+
+		}
+
+	}
+
+}
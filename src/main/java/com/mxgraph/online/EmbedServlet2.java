@@ -19,19 +19,29 @@
  */
 package com.mxgraph.online;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -39,6 +49,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 
 import com.google.appengine.api.utils.SystemProperty;
 
@@ -77,6 +89,42 @@ public class EmbedServlet2 extends HttpServlet
 	 */
 	protected HashMap<String, String[]> libraries = new HashMap<String, String[]>();
 
+	/**
+	 * Number of threads for fetching URLs.
+	 */
+	public static final int FETCH_THREADS = Integer
+			.getInteger("drawio.embed.fetchThreads", 16);
+
+	/**
+	 * Maximum number of URLs that wait for a thread.
+	 */
+	public static final int FETCH_QUEUE_SIZE = 1000;
+
+	/**
+	 * Maximum number of threads that fetch the URLs of a single request so
+	 * that one request cannot use all threads.
+	 */
+	public static final int MAX_FETCHES_PER_REQUEST = Integer
+			.getInteger("drawio.embed.maxFetchesPerRequest", 4);
+
+	/**
+	 * Maximum number of URLs that are fetched for a single request. Further
+	 * URLs are ignored.
+	 */
+	public static final int MAX_FETCH_URLS = Integer
+			.getInteger("drawio.embed.maxFetchUrls", 50);
+
+	/**
+	 * Maximum time in milliseconds for fetching all URLs of a request.
+	 */
+	public static final long FETCH_DEADLINE = Long
+			.getLong("drawio.embed.fetchDeadline", 10000);
+
+	/**
+	 * Holds the threads for fetching URLs.
+	 */
+	protected static ExecutorService executor = null;
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -376,34 +424,75 @@ public class EmbedServlet2 extends HttpServlet
 		// mode to avoid security errors
 		String proto = "https://";
 
-		String setCachedUrls = "";
+		// Installs a callback to load the stencils after the viewer was injected
+		StringBuilder buf = new StringBuilder(
+				"window.onDrawioViewerLoad = function() {");
 		String[] urls = request.getParameterValues("fetch");
 
 		if (urls != null)
 		{
-			HashSet<String> completed = new HashSet<String>();
+			appendCachedUrls(buf, urls);
+		}
+
+		buf.append("mxStencilRegistry.parseStencilSets(").append(result)
+				.append(");").append(js)
+				.append("GraphViewer.processElements(); };")
+				.append("var t = document.getElementsByTagName('script');")
+				.append("if (t != null && t.length > 0) {")
+				.append("var script = document.createElement('script');")
+				.append("script.type = 'text/javascript';")
+				.append("script.src = '").append(proto)
+				.append((dev != null && dev.equals("1")) ? "test" : "www")
+				.append(".draw.io/js/viewer.min.js';")
+				.append("t[0].parentNode.appendChild(script);}");
+
+		return buf.toString();
+	}
 
-			for (int i = 0; i < urls.length; i++)
+	/**
+	 * Fetches the given URLs concurrently and appends the JavaScript for
+	 * adding the results to the cached URLs of the viewer in the order of
+	 * the URLs. Duplicate URLs are fetched once. URLs that fail or do not
+	 * finish before the deadline are ignored. At most MAX_FETCH_URLS are
+	 * fetched, using at most MAX_FETCHES_PER_REQUEST threads of the shared
+	 * executor which fetch the URLs one after the other.
+	 */
+	protected void appendCachedUrls(StringBuilder buf, String[] urls)
+	{
+		LinkedHashMap<String, HttpGet> requests = new LinkedHashMap<String, HttpGet>();
+		LinkedHashMap<String, FutureTask<byte[]>> results = new LinkedHashMap<String, FutureTask<byte[]>>();
+		final ConcurrentLinkedQueue<FutureTask<byte[]>> pending = new ConcurrentLinkedQueue<FutureTask<byte[]>>();
+		long end = System.currentTimeMillis() + FETCH_DEADLINE;
+
+		for (int i = 0; i < urls.length && requests.size() < MAX_FETCH_URLS; i++)
+		{
+			// Checks if URL already fetched to avoid duplicates
+			if (!requests.containsKey(urls[i]))
 			{
 				try
 				{
-					// Checks if URL already fetched to avoid duplicates
-					if (!completed.contains(urls[i]))
-					{
-						completed.add(urls[i]);
-						URL url = new URL(urls[i]);
-						URLConnection connection = url.openConnection();
-						ByteArrayOutputStream stream = new ByteArrayOutputStream();
-						Utils.copy(connection.getInputStream(), stream);
-						setCachedUrls += "GraphViewer.cachedUrls['"
-								+ StringEscapeUtils.escapeEcmaScript(urls[i])
-								+ "'] = decodeURIComponent('"
-								+ StringEscapeUtils.escapeEcmaScript(
-										Utils.encodeURIComponent(
-												stream.toString("UTF-8"),
-												Utils.CHARSET_FOR_URL_ENCODING))
-								+ "');";
-					}
+					final String url = urls[i];
+					final HttpGet get = new HttpGet(
+							SharedHttpClient.toUri(url));
+					FutureTask<byte[]> task = new FutureTask<byte[]>(
+							new Callable<byte[]>()
+							{
+								public byte[] call() throws IOException
+								{
+									try (CloseableHttpResponse res = SharedHttpClient
+											.getClient().execute(get))
+									{
+										SharedHttpClient.checkStatus(res
+												.getStatusLine().getStatusCode(),
+												url);
+
+										return SharedHttpClient.readBody(res);
+									}
+								}
+							});
+					requests.put(url, get);
+					results.put(url, task);
+					pending.add(task);
 				}
 				catch (Exception e)
 				{
@@ -412,17 +501,134 @@ public class EmbedServlet2 extends HttpServlet
 			}
 		}
 
-		// Installs a callback to load the stencils after the viewer was injected
-		return "window.onDrawioViewerLoad = function() {" + setCachedUrls
-				+ "mxStencilRegistry.parseStencilSets(" + result.toString()
-				+ ");" + js + "GraphViewer.processElements(); };"
-				+ "var t = document.getElementsByTagName('script');"
-				+ "if (t != null && t.length > 0) {"
-				+ "var script = document.createElement('script');"
-				+ "script.type = 'text/javascript';" + "script.src = '" + proto
-				+ ((dev != null && dev.equals("1")) ? "test" : "www")
-				+ ".draw.io/js/viewer.min.js';"
-				+ "t[0].parentNode.appendChild(script);}";
+		// Each worker fetches the pending URLs one after the other
+		Runnable worker = new Runnable()
+		{
+			public void run()
+			{
+				FutureTask<byte[]> task;
+
+				while ((task = pending.poll()) != null)
+				{
+					task.run();
+				}
+			}
+		};
+
+		int workers = 0;
+
+		while (workers < Math.min(MAX_FETCHES_PER_REQUEST, results.size()))
+		{
+			try
+			{
+				getExecutor().execute(worker);
+				workers++;
+			}
+			catch (RejectedExecutionException e)
+			{
+				break;
+			}
+		}
+
+		// Fetches in this thread if the executor is full
+		if (workers == 0)
+		{
+			FutureTask<byte[]> task;
+
+			while (System.currentTimeMillis() < end
+					&& (task = pending.poll()) != null)
+			{
+				task.run();
+			}
+		}
+
+		for (Map.Entry<String, FutureTask<byte[]>> entry : results.entrySet())
+		{
+			String url = entry.getKey();
+			FutureTask<byte[]> result = entry.getValue();
+
+			try
+			{
+				byte[] data = result.get(
+						Math.max(0, end - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+
+				buf.append("GraphViewer.cachedUrls['")
+						.append(StringEscapeUtils.escapeEcmaScript(url))
+						.append("'] = decodeURIComponent('")
+						.append(StringEscapeUtils.escapeEcmaScript(
+								Utils.encodeURIComponent(
+										new String(data, "UTF-8"),
+										Utils.CHARSET_FOR_URL_ENCODING)))
+						.append("');");
+			}
+			catch (TimeoutException e)
+			{
+				// Releases the connection of a pending request
+				requests.get(url).abort();
+				result.cancel(true);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				requests.get(url).abort();
+				result.cancel(true);
+			}
+			catch (Exception e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Returns the executor for fetching URLs.
+	 */
+	protected static ExecutorService getExecutor()
+	{
+		synchronized (EmbedServlet2.class)
+		{
+			if (executor == null)
+			{
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(
+						FETCH_THREADS, FETCH_THREADS, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(FETCH_QUEUE_SIZE),
+						new ThreadFactory()
+						{
+							final AtomicInteger counter = new AtomicInteger();
+
+							public Thread newThread(Runnable r)
+							{
+								Thread thread = new Thread(r, "embed-fetch-"
+										+ counter.incrementAndGet());
+								thread.setDaemon(true);
+
+								return thread;
+							}
+						});
+				pool.allowCoreThreadTimeOut(true);
+				executor = pool;
+			}
+
+			return executor;
+		}
+	}
+
+	/**
+	 * @see HttpServlet#destroy()
+	 */
+	public void destroy()
+	{
+		synchronized (EmbedServlet2.class)
+		{
+			if (executor != null)
+			{
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+
+		super.destroy();
 	}
 
 	public void writeStats(HttpServletResponse response) throws IOException
@@ -5,19 +5,22 @@
 package com.mxgraph.online;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
 /**
  * Servlet implementation ProxyServlet
  */
@@ -105,34 +108,36 @@ public class GitHubServlet extends HttpServlet
 			String secret = client.equals("23bc97120b9035515661") ? DEV_CLIENT_SECRET : CLIENT_SECRET; 
 
 			String url = "https://github.com/login/oauth/access_token";
-			URL obj = new URL(url);
-			HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-
-			con.setRequestMethod("POST");
-			con.setRequestProperty("User-Agent", "draw.io");
+			HttpPost post = new HttpPost(url);
+			post.setHeader("User-Agent", "draw.io");
 
 			String urlParameters = "client_id=" + client + "&client_secret="
 					+ secret + "&code=" + code;
 
 			// Send post request
-			con.setDoOutput(true);
-			DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-			wr.writeBytes(urlParameters);
-			wr.flush();
-			wr.close();
-
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			String inputLine;
+			post.setEntity(new StringEntity(urlParameters,
+					ContentType.APPLICATION_FORM_URLENCODED));
 			StringBuffer res = new StringBuffer();
+			int status;
 
-			while ((inputLine = in.readLine()) != null)
+			try (CloseableHttpResponse con = SharedHttpClient.getClient()
+					.execute(post))
 			{
-				res.append(inputLine);
+				status = con.getStatusLine().getStatusCode();
+				SharedHttpClient.checkStatus(status, url);
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						con.getEntity().getContent(), StandardCharsets.UTF_8));
+				String inputLine;
+
+				while ((inputLine = in.readLine()) != null)
+				{
+					res.append(inputLine);
+				}
+				in.close();
 			}
-			in.close();
 			
-			response.setStatus(con.getResponseCode());
+			response.setStatus(status);
 			
 			OutputStream out = response.getOutputStream();
 
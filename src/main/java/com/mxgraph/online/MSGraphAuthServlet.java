@@ -4,19 +4,22 @@
 package com.mxgraph.online;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
 @SuppressWarnings("serial")
 public class MSGraphAuthServlet extends HttpServlet
 {
@@ -124,11 +127,7 @@ public class MSGraphAuthServlet extends HttpServlet
 		else
 		{
 			String url = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
-			URL obj = new URL(url);
-			HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			HttpPost post = new HttpPost(url);
 
 			boolean jsonResponse = false;
 			StringBuilder urlParameters = new StringBuilder();
@@ -155,16 +154,10 @@ public class MSGraphAuthServlet extends HttpServlet
 			}
 			
 			// Send post request
-			con.setDoOutput(true);
-			DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-			wr.writeBytes(urlParameters.toString());
-			wr.flush();
-			wr.close();
-
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			String inputLine;
+			post.setEntity(new StringEntity(urlParameters.toString(),
+					ContentType.APPLICATION_FORM_URLENCODED));
 			StringBuffer res = new StringBuffer();
+			int status;
 
 			//Call the opener callback function directly with the given json
 			if (!jsonResponse)
@@ -175,11 +168,22 @@ public class MSGraphAuthServlet extends HttpServlet
 				res.append("	window.opener.onOneDriveCallback("); //The following is a json containing access_token and redresh_token
 			}
 			
-			while ((inputLine = in.readLine()) != null)
+			try (CloseableHttpResponse con = SharedHttpClient.getClient()
+					.execute(post))
 			{
-				res.append(inputLine);
+				status = con.getStatusLine().getStatusCode();
+				SharedHttpClient.checkStatus(status, url);
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						con.getEntity().getContent(), StandardCharsets.UTF_8));
+				String inputLine;
+
+				while ((inputLine = in.readLine()) != null)
+				{
+					res.append(inputLine);
+				}
+				in.close();
 			}
-			in.close();
 
 			if (!jsonResponse)
 			{
@@ -188,7 +192,7 @@ public class MSGraphAuthServlet extends HttpServlet
 				res.append("</script></head><body></body></html>");
 			}
 
-			response.setStatus(con.getResponseCode());
+			response.setStatus(status);
 			
 			OutputStream out = response.getOutputStream();
 
@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.cache.Cache;
+import javax.cache.CacheException;
+import javax.cache.CacheFactory;
+import javax.cache.CacheManager;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.Stats;
+import com.google.appengine.api.memcache.stdimpl.GCacheFactory;
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * Patch store that keeps the entries in the App Engine memcache so that all
+ * instances of the application share the same patches. Next to the entries,
+ * a chain index is stored for each diagram which maps from etags to the
+ * following etags so that a patch chain can be fetched with a single
+ * multi-get instead of one request per link. Entries are stored in the
+ * binary encoding of {@link CacheEntryCodec} with a per-diagram preset
+ * dictionary. The current dictionary is kept in the chain index, and each
+ * dictionary is also stored under its own key with its checksum so that
+ * entries can be decoded after the index was replaced or evicted. Entries
+ * whose dictionary was evicted are treated as missing.
+ */
+public class MemcachePatchStore implements PatchStore
+{
+
+	/**
+	 * Maximum number of links in the chain index of a diagram.
+	 */
+	public static final int MAX_INDEX_SIZE = 256;
+
+	/**
+	 * Holds the JCache wrapper for the memcache.
+	 */
+	protected Cache cache;
+
+	/**
+	 * Holds the JCache wrapper for the chain indices. This is separate from
+	 * the entries since the index is overwritten on each update.
+	 */
+	protected Cache indexCache;
+
+	/**
+	 * Constructs a new store where entries expire after the given number of
+	 * seconds.
+	 */
+	public MemcachePatchStore(int expirationDelta) throws CacheException
+	{
+		CacheFactory cacheFactory = CacheManager.getInstance()
+				.getCacheFactory();
+		Map<Object, Object> properties = new HashMap<>();
+		properties.put(MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT,
+				true);
+		properties.put(GCacheFactory.EXPIRATION_DELTA, expirationDelta);
+		cache = cacheFactory.createCache(properties);
+
+		Map<Object, Object> indexProperties = new HashMap<>();
+		indexProperties.put(GCacheFactory.EXPIRATION_DELTA, expirationDelta);
+		indexCache = cacheFactory.createCache(indexProperties);
+	}
+
+	/**
+	 * Returns the key for the given diagram ID and etag.
+	 */
+	protected String getKey(String id, String from)
+	{
+		return id + ":" + from;
+	}
+
+	/**
+	 * Returns the key of the dictionary with the given checksum for the
+	 * given diagram ID.
+	 */
+	protected String getDictionaryKey(String id, int checksum)
+	{
+		return id + ":dictionary:" + Integer.toHexString(checksum);
+	}
+
+	/**
+	 * Returns the key of the chain index for the given diagram ID.
+	 */
+	protected String getIndexKey(String id)
+	{
+		return id + ":index";
+	}
+
+	/**
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public void put(String id, String from, CacheEntry entry)
+	{
+		// The links are a hint for the multi-get so concurrent updates that
+		// overwrite each other only lead to a partial batch
+		ChainIndex index = getIndex(id);
+
+		if (index == null)
+		{
+			index = new ChainIndex(CacheEntryCodec.createDictionary(entry));
+		}
+
+		// Adds the dictionary with the entry in case it was evicted. The
+		// key depends on the content so racing updates cannot replace it.
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put(getKey(id, from),
+				CacheEntryCodec.encode(entry, index.dictionary));
+		values.put(getDictionaryKey(id,
+				CacheEntryCodec.getChecksum(index.dictionary)),
+				index.dictionary);
+		cache.putAll(values);
+
+		if (!index.links.containsKey(from))
+		{
+			index.links.put(from, entry.getEtag());
+			Iterator<String> it = index.links.keySet().iterator();
+
+			while (index.links.size() > MAX_INDEX_SIZE && it.hasNext())
+			{
+				it.next();
+				it.remove();
+			}
+
+			indexCache.put(getIndexKey(id), index);
+		}
+	}
+
+	/**
+	 * Returns the chain index for the given diagram ID or null.
+	 */
+	protected ChainIndex getIndex(String id)
+	{
+		Object value = indexCache.get(getIndexKey(id));
+
+		return (value instanceof ChainIndex) ? (ChainIndex) value : null;
+	}
+
+	/**
+	 * Returns a map from checksums to the known dictionaries of a diagram
+	 * which contains the dictionary of the given optional index.
+	 */
+	protected Map<Integer, byte[]> getDictionaries(ChainIndex index)
+	{
+		Map<Integer, byte[]> dictionaries = new HashMap<Integer, byte[]>();
+
+		if (index != null && index.dictionary != null)
+		{
+			dictionaries.put(CacheEntryCodec.getChecksum(index.dictionary),
+					index.dictionary);
+		}
+
+		return dictionaries;
+	}
+
+	/**
+	 * Decodes the given cached value using the dictionary with the checksum
+	 * of the value. Dictionaries that are not in the given map are fetched
+	 * and added to the map. Returns null if the value cannot be decoded or
+	 * the dictionary was evicted.
+	 */
+	protected CacheEntry decode(String id, Object value,
+			Map<Integer, byte[]> dictionaries)
+	{
+		if (value instanceof byte[])
+		{
+			byte[] bytes = (byte[]) value;
+			Integer checksum = CacheEntryCodec.getDictionaryChecksum(bytes);
+			byte[] dictionary = null;
+
+			if (checksum != null)
+			{
+				dictionary = dictionaries.get(checksum);
+
+				if (dictionary == null)
+				{
+					Object dict = cache.get(getDictionaryKey(id, checksum));
+
+					if (!(dict instanceof byte[]))
+					{
+						return null;
+					}
+
+					dictionary = (byte[]) dict;
+					dictionaries.put(checksum, dictionary);
+				}
+			}
+
+			try
+			{
+				return CacheEntryCodec.decode(bytes, dictionary);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		// Entries that were stored before the binary encoding was used
+		return (value instanceof CacheEntry) ? (CacheEntry) value : null;
+	}
+
+	/**
+	 *
+	 */
+	public CacheEntry get(String id, String from)
+	{
+		return decode(id, cache.get(getKey(id, from)),
+				getDictionaries(getIndex(id)));
+	}
+
+	/**
+	 * Uses the chain index to fetch all known links with one multi-get and
+	 * falls back to fetching the remaining links one by one.
+	 */
+	public List<CacheEntry> getChain(String id, String from, String to)
+	{
+		List<CacheEntry> result = new ArrayList<CacheEntry>();
+		HashSet<String> seen = new HashSet<String>();
+		String current = from;
+		boolean done = false;
+		ChainIndex index = getIndex(id);
+		Map<Integer, byte[]> dictionaries = getDictionaries(index);
+
+		if (index != null)
+		{
+			List<String> etags = new ArrayList<String>();
+			String etag = from;
+
+			while (!etags.contains(etag) && index.links.containsKey(etag))
+			{
+				etags.add(etag);
+				etag = index.links.get(etag);
+
+				if (etag.equals(to))
+				{
+					break;
+				}
+			}
+
+			if (etags.size() > 0)
+			{
+				List<String> keys = new ArrayList<String>(etags.size());
+
+				for (String e : etags)
+				{
+					keys.add(getKey(id, e));
+				}
+
+				Map<?, ?> values = null;
+
+				try
+				{
+					values = cache.getAll(keys);
+				}
+				catch (CacheException e)
+				{
+					// ignores batch and walks the chain link by link
+				}
+
+				if (values != null)
+				{
+					// Joins the batch while the links match the index
+					for (int i = 0; i < keys.size(); i++)
+					{
+						CacheEntry entry = decode(id,
+								values.get(keys.get(i)), dictionaries);
+
+						if (entry == null || !seen.add(current))
+						{
+							break;
+						}
+
+						result.add(entry);
+						current = entry.getEtag();
+						done = current.equals(to);
+
+						if (done || i + 1 >= etags.size()
+								|| !current.equals(etags.get(i + 1)))
+						{
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		// Fetches the remaining links one by one
+		while (!done && !seen.contains(current))
+		{
+			CacheEntry entry = decode(id, cache.get(getKey(id, current)),
+					dictionaries);
+
+			if (entry == null)
+			{
+				result.clear();
+				break;
+			}
+
+			seen.add(current);
+			result.add(entry);
+			current = entry.getEtag();
+			done = current.equals(to);
+		}
+
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		Stats s = MemcacheServiceFactory.getMemcacheService().getStatistics();
+		writer.println("timestamp: " + new Date().toString());
+		writer.println("hit count: " + s.getHitCount());
+		writer.println("miss count: " + s.getMissCount());
+		writer.println("item count: " + s.getItemCount());
+		writer.println("total item bytes: " + s.getTotalItemBytes());
+		writer.println(
+				"bytes returned for hits: " + s.getBytesReturnedForHits());
+		writer.println(
+				"max time without access: " + s.getMaxTimeWithoutAccess());
+	}
+
+	/**
+	 * Holds the links between the etags of a diagram and the preset
+	 * dictionary for the encoded entries of the diagram.
+	 */
+	public static class ChainIndex implements Serializable
+	{
+
+		private static final long serialVersionUID = -2934612035723104851L;
+
+		/**
+		 * Maps from etags to the following etags in insertion order.
+		 */
+		final LinkedHashMap<String, String> links = new LinkedHashMap<String, String>();
+
+		/**
+		 * Holds the preset dictionary.
+		 */
+		final byte[] dictionary;
+
+		/**
+		 * Constructs a new index with the given dictionary.
+		 */
+		public ChainIndex(byte[] dictionary)
+		{
+			this.dictionary = dictionary;
+		}
+
+	}
+
+}
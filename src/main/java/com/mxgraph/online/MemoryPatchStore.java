@@ -0,0 +1,481 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * In-process patch store. The patches of a diagram are kept in a map that
+ * lives in one of a fixed number of stripes, each guarded by its own lock so
+ * that requests for different diagrams rarely contend. Entries expire after
+ * the expiration delta (counted from the time they were added, same as the
+ * memcache expiration delta) and the least recently used diagrams are
+ * evicted if a stripe exceeds its share of the maximum size. A single
+ * diagram may only use a fraction of its stripe so that a diagram with a
+ * high write rate drops its own oldest entries instead of evicting the
+ * chains of other diagrams. The number of stripes is reduced if needed so
+ * that an entry of the maximum size fits into the share of a diagram, and
+ * larger entries are rejected without evicting anything.
+ */
+public class MemoryPatchStore implements PatchStore
+{
+
+	/**
+	 * Default number of stripes.
+	 */
+	public static final int DEFAULT_STRIPE_COUNT = 64;
+
+	/**
+	 * Default fraction of a stripe that a single diagram may use.
+	 */
+	public static final double DEFAULT_DIAGRAM_SHARE = 0.5;
+
+	/**
+	 * Estimated fixed overhead (in bytes) of an entry in the store.
+	 */
+	protected static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Number of characters that are allowed for the etags and secret of an
+	 * entry in addition to the data when computing the maximum entry size.
+	 */
+	protected static final int KEY_ALLOWANCE = 1024;
+
+	/**
+	 * Time to live of an entry in milliseconds.
+	 */
+	protected final long ttl;
+
+	/**
+	 * Maximum estimated size (in bytes) per stripe.
+	 */
+	protected final long maxStripeSize;
+
+	/**
+	 * Maximum estimated size (in bytes) per diagram.
+	 */
+	protected final long maxDiagramSize;
+
+	/**
+	 * Holds the stripes.
+	 */
+	protected final Stripe[] stripes;
+
+	/**
+	 * Counters for the statistics.
+	 */
+	protected final LongAdder hits = new LongAdder();
+
+	protected final LongAdder misses = new LongAdder();
+
+	protected final LongAdder evictions = new LongAdder();
+
+	protected final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Constructs a new store where entries expire after the given number of
+	 * seconds, the estimated total size is limited to the given number of
+	 * bytes and the data of an entry has at most the given length.
+	 */
+	public MemoryPatchStore(int expirationDelta, long maxSize,
+			int maxDataLength)
+	{
+		this(expirationDelta, maxSize, maxDataLength, DEFAULT_STRIPE_COUNT);
+	}
+
+	/**
+	 * Constructs a new store with at most the given number of stripes.
+	 */
+	public MemoryPatchStore(int expirationDelta, long maxSize,
+			int maxDataLength, int stripeCount)
+	{
+		long maxEntrySize = ENTRY_OVERHEAD
+				+ 2L * ((long) maxDataLength + KEY_ALLOWANCE);
+
+		// Fewer and larger stripes so that the largest entry fits
+		while (stripeCount > 1 && (long) (maxSize / stripeCount
+				* DEFAULT_DIAGRAM_SHARE) < maxEntrySize)
+		{
+			stripeCount /= 2;
+		}
+
+		ttl = expirationDelta * 1000L;
+		maxStripeSize = Math.max(1, maxSize / stripeCount);
+		maxDiagramSize = Math
+				.max(1, (long) (maxStripeSize * DEFAULT_DIAGRAM_SHARE));
+		stripes = new Stripe[stripeCount];
+
+		for (int i = 0; i < stripes.length; i++)
+		{
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Returns the stripe for the given diagram ID.
+	 */
+	protected Stripe getStripe(String id)
+	{
+		int h = id.hashCode();
+		h ^= (h >>> 16);
+
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Returns the estimated size of the given entry in bytes.
+	 */
+	protected static int getSize(String from, CacheEntry entry)
+	{
+		return ENTRY_OVERHEAD + 2 * (length(from) + length(entry.getEtag())
+				+ length(entry.getData()) + length(entry.getSecret()));
+	}
+
+	/**
+	 * Returns the length of the given string or 0 for null.
+	 */
+	protected static int length(String value)
+	{
+		return (value != null) ? value.length() : 0;
+	}
+
+	/**
+	 *
+	 */
+	public void put(String id, String from, CacheEntry entry)
+	{
+		Stripe stripe = getStripe(id);
+		long now = System.currentTimeMillis();
+		int size = getSize(from, entry);
+
+		// Entries that cannot be kept must not evict other diagrams
+		if (size > maxDiagramSize)
+		{
+			rejected.increment();
+
+			return;
+		}
+
+		synchronized (stripe)
+		{
+			Diagram diagram = stripe.diagrams.get(id);
+
+			if (diagram == null)
+			{
+				diagram = new Diagram();
+				stripe.diagrams.put(id, diagram);
+			}
+			else
+			{
+				stripe.size -= diagram.expire(now);
+			}
+
+			// Same as ADD_ONLY_IF_NOT_PRESENT in memcache
+			if (!diagram.items.containsKey(from))
+			{
+				Item item = new Item(entry, now + ttl, size);
+				diagram.items.put(from, item);
+				diagram.size += item.size;
+				diagram.expires = item.expires;
+				stripe.size += item.size;
+				stripe.size -= diagram.trim(maxDiagramSize);
+			}
+
+			stripe.evict(id, now);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public CacheEntry get(String id, String from)
+	{
+		Stripe stripe = getStripe(id);
+		CacheEntry result = null;
+
+		synchronized (stripe)
+		{
+			Diagram diagram = stripe.diagrams.get(id);
+
+			if (diagram != null)
+			{
+				stripe.size -= diagram.expire(System.currentTimeMillis());
+				Item item = diagram.items.get(from);
+
+				if (item != null)
+				{
+					result = item.entry;
+				}
+			}
+		}
+
+		if (result != null)
+		{
+			hits.increment();
+		}
+		else
+		{
+			misses.increment();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Resolves the complete chain while holding the lock of the stripe.
+	 */
+	public List<CacheEntry> getChain(String id, String from, String to)
+	{
+		Stripe stripe = getStripe(id);
+		List<CacheEntry> result = new ArrayList<CacheEntry>();
+
+		synchronized (stripe)
+		{
+			Diagram diagram = stripe.diagrams.get(id);
+
+			if (diagram != null)
+			{
+				stripe.size -= diagram.expire(System.currentTimeMillis());
+				HashSet<String> seen = new HashSet<String>();
+				String current = from;
+
+				while (seen.add(current))
+				{
+					Item item = diagram.items.get(current);
+
+					if (item == null)
+					{
+						result.clear();
+						break;
+					}
+
+					result.add(item.entry);
+					current = item.entry.getEtag();
+
+					if (current.equals(to))
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		if (result.size() > 0)
+		{
+			hits.add(result.size());
+		}
+		else
+		{
+			misses.increment();
+		}
+
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		long diagrams = 0;
+		long items = 0;
+		long size = 0;
+
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				diagrams += stripe.diagrams.size();
+				size += stripe.size;
+
+				for (Diagram diagram : stripe.diagrams.values())
+				{
+					items += diagram.items.size();
+				}
+			}
+		}
+
+		writer.println("timestamp: " + new Date().toString());
+		writer.println("hit count: " + hits.sum());
+		writer.println("miss count: " + misses.sum());
+		writer.println("item count: " + items);
+		writer.println("diagram count: " + diagrams);
+		writer.println("total item bytes: " + size);
+		writer.println("max item bytes: " + maxStripeSize * stripes.length);
+		writer.println("eviction count: " + evictions.sum());
+		writer.println("rejected count: " + rejected.sum());
+	}
+
+	/**
+	 * Holds the diagrams that map to a given stripe in access order.
+	 */
+	protected class Stripe
+	{
+
+		/**
+		 * Maps from diagram IDs to diagrams in access order.
+		 */
+		final LinkedHashMap<String, Diagram> diagrams = new LinkedHashMap<String, Diagram>(
+				16, 0.75f, true);
+
+		/**
+		 * Estimated size of all entries in this stripe.
+		 */
+		long size = 0;
+
+		/**
+		 * Removes expired diagrams and least recently used diagrams while
+		 * the stripe is too large. The given diagram is never removed.
+		 */
+		void evict(String keep, long now)
+		{
+			Iterator<Map.Entry<String, Diagram>> it = diagrams.entrySet()
+					.iterator();
+
+			while (it.hasNext())
+			{
+				Map.Entry<String, Diagram> e = it.next();
+				Diagram diagram = e.getValue();
+				boolean expired = diagram.expires <= now;
+
+				if (!e.getKey().equals(keep)
+						&& (expired || size > maxStripeSize))
+				{
+					size -= diagram.size;
+					it.remove();
+
+					if (!expired)
+					{
+						evictions.increment();
+					}
+				}
+				else if (size <= maxStripeSize)
+				{
+					break;
+				}
+			}
+
+			// Drops the oldest entries of the remaining diagram
+			Diagram diagram = diagrams.get(keep);
+
+			if (diagram != null && size > maxStripeSize)
+			{
+				Iterator<Item> items = diagram.items.values().iterator();
+
+				while (size > maxStripeSize && items.hasNext())
+				{
+					Item item = items.next();
+					items.remove();
+					diagram.size -= item.size;
+					size -= item.size;
+					evictions.increment();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Holds the entries of a diagram in insertion order.
+	 */
+	protected static class Diagram
+	{
+
+		/**
+		 * Maps from etags to items in insertion order.
+		 */
+		final LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>();
+
+		/**
+		 * Estimated size of all entries of this diagram.
+		 */
+		long size = 0;
+
+		/**
+		 * Time when the last entry of this diagram expires.
+		 */
+		long expires = 0;
+
+		/**
+		 * Removes all expired entries and returns their estimated size.
+		 */
+		long expire(long now)
+		{
+			long removed = 0;
+			Iterator<Item> it = items.values().iterator();
+
+			while (it.hasNext())
+			{
+				Item item = it.next();
+
+				// Items are in insertion order and have the same TTL
+				if (item.expires > now)
+				{
+					break;
+				}
+
+				it.remove();
+				removed += item.size;
+			}
+
+			size -= removed;
+
+			return removed;
+		}
+
+		/**
+		 * Removes the oldest entries while the diagram is larger than the
+		 * given size and returns their estimated size. The newest entry is
+		 * never removed.
+		 */
+		long trim(long maxSize)
+		{
+			long removed = 0;
+			Iterator<Item> it = items.values().iterator();
+
+			while (size - removed > maxSize && items.size() > 1)
+			{
+				removed += it.next().size;
+				it.remove();
+			}
+
+			size -= removed;
+
+			return removed;
+		}
+
+	}
+
+	/**
+	 * Holds an entry and its expiration time.
+	 */
+	protected static class Item
+	{
+
+		final CacheEntry entry;
+
+		final long expires;
+
+		final int size;
+
+		Item(CacheEntry entry, long expires, int size)
+		{
+			this.entry = entry;
+			this.expires = expires;
+			this.size = size;
+		}
+
+	}
+
+}
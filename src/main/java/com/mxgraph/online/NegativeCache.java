@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers failed requests for URLs and hosts for a limited time so that
+ * broken links are not fetched again on every request. The number of
+ * entries is limited and the least recently used entries are evicted.
+ */
+public class NegativeCache
+{
+
+	/**
+	 * Time to live in milliseconds for URLs that were not found.
+	 */
+	public static final long NOT_FOUND_TTL = 5 * 60 * 1000;
+
+	/**
+	 * Time to live in milliseconds for hosts that could not be resolved.
+	 */
+	public static final long UNKNOWN_HOST_TTL = 60 * 1000;
+
+	/**
+	 * Time to live in milliseconds for URLs with unsupported content.
+	 */
+	public static final long FORBIDDEN_TTL = 10 * 60 * 1000;
+
+	/**
+	 * Default maximum number of entries.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Prefix for the keys of hosts.
+	 */
+	protected static final String HOST_PREFIX = "host:";
+
+	/**
+	 * Prefix for the keys of URLs.
+	 */
+	protected static final String URL_PREFIX = "url:";
+
+	/**
+	 * Maps from keys to entries in access order. Guarded by this.
+	 */
+	protected final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Counters for the statistics.
+	 */
+	protected final LongAdder hits = new LongAdder();
+
+	protected final LongAdder stores = new LongAdder();
+
+	/**
+	 * Constructs a new cache with the default maximum size.
+	 */
+	public NegativeCache()
+	{
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructs a new cache with the given maximum size.
+	 */
+	@SuppressWarnings("serial")
+	public NegativeCache(final int maxSize)
+	{
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the remembered status for the given URL key or host or 0 if
+	 * there is no valid entry.
+	 */
+	public int getStatus(String key, String host, long now)
+	{
+		int status = get(URL_PREFIX + key, now);
+
+		if (status == 0 && host != null)
+		{
+			status = get(HOST_PREFIX + host.toLowerCase(Locale.ENGLISH), now);
+		}
+
+		if (status != 0)
+		{
+			hits.increment();
+		}
+
+		return status;
+	}
+
+	/**
+	 * Remembers the given status for the given URL key.
+	 */
+	public void putUrl(String key, int status, long ttl, long now)
+	{
+		put(URL_PREFIX + key, status, ttl, now);
+	}
+
+	/**
+	 * Remembers the given status for the given host.
+	 */
+	public void putHost(String host, int status, long ttl, long now)
+	{
+		if (host != null)
+		{
+			put(HOST_PREFIX + host.toLowerCase(Locale.ENGLISH), status, ttl,
+					now);
+		}
+	}
+
+	/**
+	 * Returns the status for the given key or 0. Expired entries are
+	 * removed.
+	 */
+	protected synchronized int get(String key, long now)
+	{
+		Entry entry = entries.get(key);
+
+		if (entry == null)
+		{
+			return 0;
+		}
+		else if (now >= entry.expires)
+		{
+			entries.remove(key);
+
+			return 0;
+		}
+
+		return entry.status;
+	}
+
+	/**
+	 * Stores the given status for the given key.
+	 */
+	protected synchronized void put(String key, int status, long ttl,
+			long now)
+	{
+		entries.put(key, new Entry(status, now + ttl));
+		stores.increment();
+	}
+
+	/**
+	 * Writes the statistics of this cache as plain text.
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		synchronized (this)
+		{
+			writer.println("negative cache items: " + entries.size());
+		}
+
+		writer.println("negative cache hit count: " + hits.sum());
+		writer.println("negative cache store count: " + stores.sum());
+	}
+
+	/**
+	 * Remembered status with its expiration time.
+	 */
+	protected static class Entry
+	{
+
+		final int status;
+
+		final long expires;
+
+		Entry(int status, long expires)
+		{
+			this.status = status;
+			this.expires = expires;
+		}
+
+	}
+
+}
@@ -6,17 +6,21 @@ package com.mxgraph.online;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.net.URLDecoder;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -27,7 +31,9 @@ import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.xml.sax.InputSource;
 
 import com.mxgraph.io.mxCodec;
 import com.mxgraph.io.mxGraphMlCodec;
@@ -74,6 +80,11 @@ public class OpenServlet extends HttpServlet
 	 */
 	public static final int PNG_CHUNK_IEND = 1229278788;
 
+	/**
+	 * Keyword of the text chunk that contains the diagram.
+	 */
+	public static final String PNG_KEYWORD = "mxGraphModel";
+
 	/**
 	 * 
 	 */
@@ -84,6 +95,16 @@ public class OpenServlet extends HttpServlet
 	 */
 	protected static String graphMlRegex = "(?s).*<graphml xmlns=\".*";
 
+	/**
+	 * 
+	 */
+	protected static Pattern gliffyPattern = Pattern.compile(gliffyRegex);
+
+	/**
+	 * 
+	 */
+	protected static Pattern graphMlPattern = Pattern.compile(graphMlRegex);
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -106,7 +127,8 @@ public class OpenServlet extends HttpServlet
 			{
 				String filename = "";
 				String format = null;
-				String upfile = null;
+				UploadBuffer upfile = null;
+				String xml = null;
 
 				ServletFileUpload upload = new ServletFileUpload();
 				FileItemIterator iterator = upload.getItemIterator(request);
@@ -124,8 +146,17 @@ public class OpenServlet extends HttpServlet
 					else if (name.equals("upfile"))
 					{
 						filename = item.getName();
-						upfile = Streams.asString(stream,
-								Utils.CHARSET_FOR_URL_ENCODING);
+
+						// Reads the text chunks directly from the upload
+						if (filename.toLowerCase().endsWith(".png"))
+						{
+							xml = extractXmlFromPng(stream);
+						}
+						else
+						{
+							upfile = new UploadBuffer();
+							Streams.copy(stream, upfile, true);
+						}
 					}
 				}
 
@@ -139,29 +170,45 @@ public class OpenServlet extends HttpServlet
 					format = "html";
 				}
 
-				String xml = null;
-
-				if (filename.toLowerCase().endsWith(".png"))
+				if (upfile != null)
 				{
-					xml = extractXmlFromPng(
-							upfile.getBytes(Utils.CHARSET_FOR_URL_ENCODING));
-				}
-				else if (upfile != null)
-				{
-					if (ENABLE_GRAPHML_SUPPORT && upfile.matches(graphMlRegex))
+					// Scans SVG, HTML and PDF exports for the embedded diagram
+					try
+					{
+						xml = DiagramExtractor.extract(upfile.openStream());
+					}
+					catch (IOException | RuntimeException e)
+					{
+						// Falls through to the other formats and the raw file
+						log.log(Level.FINE, "open: cannot extract diagram from "
+								+ filename, e);
+					}
+
+					// Matches the bytes as characters without decoding
+					CharSequence chars = upfile.getChars();
+
+					if (xml != null)
+					{
+						log.fine("open: extracted diagram from " + filename);
+					}
+					else if (ENABLE_GRAPHML_SUPPORT
+							&& graphMlPattern.matcher(chars).matches())
 					{
 						// Creates a graph that contains a model but does not validate
 						// since that is not needed for the model and not allowed on GAE
 						mxGraph graph = new mxGraphHeadless();
-	
-						mxGraphMlCodec.decode(mxXmlUtils.parseXml(upfile), graph);
+
+						mxGraphMlCodec.decode(mxXmlUtils.getDocumentBuilder()
+								.parse(new InputSource(upfile.openReader())),
+								graph);
 						xml = mxXmlUtils
 								.getXml(new mxCodec().encode(graph.getModel()));
 					}
-					else if (ENABLE_GLIFFY_SUPPORT && upfile.matches(gliffyRegex))
+					else if (ENABLE_GLIFFY_SUPPORT
+							&& gliffyPattern.matcher(chars).matches())
 					{
 						GliffyDiagramConverter converter = new GliffyDiagramConverter(
-								upfile);
+								upfile.toString(Utils.CHARSET_FOR_URL_ENCODING));
 						xml = converter.getGraphXml();
 					}
 				}
@@ -170,15 +217,16 @@ public class OpenServlet extends HttpServlet
 				if (xml == null)
 				{
 					xml = (upfile == null) ? request.getParameter("data")
-							: upfile;
+							: upfile.toString(Utils.CHARSET_FOR_URL_ENCODING);
 				}
+
+				upfile = null;
 				
-				String ref = request.getHeader("referer");
+				String dom = OriginPolicy.QUIP_ELEMENTS
+						.getOrigin(request.getHeader("referer"));
 				
-				if (ref != null && ref.toLowerCase()
-						.matches("https?://([a-z0-9,-]+[.])*quipelements[.]com/.*"))
+				if (dom != null)
 				{
-					String dom = ref.toLowerCase().substring(0, ref.indexOf(".quipelements.com/") + 17);
 					response.addHeader("Access-Control-Allow-Origin", dom);
 					response.addHeader("Access-Control-Allow-Methods", "GET");
 				}
@@ -255,33 +303,131 @@ public class OpenServlet extends HttpServlet
 	// NOTE: Key length must not be longer than 79 bytes (not checked)
 	protected String extractXmlFromPng(byte[] data)
 	{
-		Map<String, String> textChunks = decodeCompressedText(
-				new ByteArrayInputStream(data));
+		return extractXmlFromPng(new ByteArrayInputStream(data));
+	}
 
-		return (textChunks != null) ? textChunks.get("mxGraphModel") : null;
+	/**
+	 * Returns the diagram in the text chunks of the given PNG image stream
+	 * or null. The image is not read into memory.
+	 */
+	protected String extractXmlFromPng(InputStream stream)
+	{
+		Map<String, String> textChunks = decodeCompressedText(stream);
+
+		return (textChunks != null) ? textChunks.get(PNG_KEYWORD) : null;
 	}
 
 	/**
-	 * Decodes the zTXt chunk of the given PNG image stream.
+	 * Holds the bytes of an uploaded file. The bytes are accessed without
+	 * copying and decoded only if the file is returned as text.
+	 */
+	protected static class UploadBuffer extends ByteArrayOutputStream
+	{
+
+		UploadBuffer()
+		{
+			super(64 * 1024);
+		}
+
+		/**
+		 * Returns a stream for the bytes.
+		 */
+		InputStream openStream()
+		{
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+		/**
+		 * Returns a reader for the bytes as ISO-8859-1 characters.
+		 */
+		Reader openReader()
+		{
+			return new InputStreamReader(openStream(),
+					StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * Returns a view of the bytes as ISO-8859-1 characters.
+		 */
+		CharSequence getChars()
+		{
+			return new Latin1Chars(buf, 0, count);
+		}
+
+	}
+
+	/**
+	 * Character sequence for ISO-8859-1 bytes where each byte is a
+	 * character.
+	 */
+	protected static class Latin1Chars implements CharSequence
+	{
+
+		final byte[] data;
+
+		final int offset;
+
+		final int length;
+
+		Latin1Chars(byte[] data, int offset, int length)
+		{
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int length()
+		{
+			return length;
+		}
+
+		public char charAt(int index)
+		{
+			if (index < 0 || index >= length)
+			{
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+
+			return (char) (data[offset + index] & 0xff);
+		}
+
+		public CharSequence subSequence(int start, int end)
+		{
+			if (start < 0 || end > length || start > end)
+			{
+				throw new IndexOutOfBoundsException();
+			}
+
+			return new Latin1Chars(data, offset + start, end - start);
+		}
+
+		public String toString()
+		{
+			return new String(data, offset, length,
+					StandardCharsets.ISO_8859_1);
+		}
+
+	}
+
+	/**
+	 * Decodes the first text chunk with the mxGraphModel keyword of the given
+	 * PNG image stream. Other chunks are skipped without reading them into
+	 * memory and the rest of the image is not read. Supports tEXt, zTXt with
+	 * raw deflate data and iTXt chunks.
 	 */
 	public static Map<String, String> decodeCompressedText(InputStream stream)
 	{
 		Map<String, String> result = new Hashtable<String, String>();
+		PngChunkReader reader;
 
 		if (!stream.markSupported())
 		{
 			stream = new BufferedInputStream(stream);
 		}
-		DataInputStream distream = new DataInputStream(stream);
 
 		try
 		{
-			long magic = distream.readLong();
-
-			if (magic != 0x89504e470d0a1a0aL)
-			{
-				throw new RuntimeException("PNGImageDecoder0");
-			}
+			reader = new PngChunkReader(stream);
 		}
 		catch (Exception e)
 		{
@@ -291,42 +437,21 @@ public class OpenServlet extends HttpServlet
 
 		try
 		{
-			while (distream.available() > 0)
+			while (reader.next())
 			{
-				int length = distream.readInt();
-				int type = distream.readInt();
-				byte[] data = new byte[length];
-				distream.readFully(data);
-				distream.readInt(); // Move past the crc
-
-				if (type == PNG_CHUNK_IEND)
+				if (reader.isText()
+						&& PNG_KEYWORD.equals(reader.readKeyword()))
 				{
-					return null;
-				}
-				else if (type == PNG_CHUNK_ZTXT)
-				{
-					int currentIndex = 0;
-					while ((data[currentIndex++]) != 0)
-					{
-					}
-
-					String key = new String(data, 0, currentIndex - 1);
+					String text = readText(reader);
 
-					try
-					{
-						byte[] bytes = Arrays.copyOfRange(data,
-								currentIndex + 1, data.length);
-						String value = URLDecoder.decode(Utils.inflate(bytes),
-								Utils.CHARSET_FOR_URL_ENCODING);
-						result.put(key, value);
-					}
-					catch (Exception e)
+					if (text != null)
 					{
-						e.printStackTrace();
-					}
+						result.put(PNG_KEYWORD, URLDecoder.decode(text,
+								Utils.CHARSET_FOR_URL_ENCODING));
 
-					// No need to parse the rest of the PNG
-					return result;
+						// No need to parse the rest of the PNG
+						return result;
+					}
 				}
 			}
 		}
@@ -337,4 +462,49 @@ public class OpenServlet extends HttpServlet
 
 		return null;
 	}
+
+	/**
+	 * Returns the text of the current text chunk after the keyword or null
+	 * if the chunk uses an unknown compression.
+	 */
+	protected static String readText(PngChunkReader reader) throws IOException
+	{
+		InputStream body = reader.openBody();
+
+		if (reader.getType() == PngChunkReader.CHUNK_TEXT)
+		{
+			return IOUtils.toString(body, StandardCharsets.ISO_8859_1);
+		}
+		else if (reader.getType() == PngChunkReader.CHUNK_ZTXT)
+		{
+			// Skips the compression method
+			body.read();
+
+			try (InputStream in = Utils.inflate(body))
+			{
+				return IOUtils.toString(in, StandardCharsets.UTF_8);
+			}
+		}
+
+		// Compression flag and method, language tag and translated keyword
+		int compressed = body.read();
+		body.read();
+
+		if (PngChunkReader.readString(body, reader.getLength()) == null
+				|| PngChunkReader.readString(body, reader.getLength()) == null)
+		{
+			return null;
+		}
+		else if (compressed == 1)
+		{
+			try (InputStream in = new InflaterInputStream(body))
+			{
+				return IOUtils.toString(in, StandardCharsets.UTF_8);
+			}
+		}
+
+		return (compressed == 0)
+				? IOUtils.toString(body, StandardCharsets.UTF_8)
+				: null;
+	}
 }
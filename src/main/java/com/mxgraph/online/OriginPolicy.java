@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.util.Locale;
+
+/**
+ * Checks if the referer of a request belongs to a trusted domain and returns
+ * the origin for the CORS header. A referer matches if it is an http or
+ * https URL whose host is the domain or a subdomain of the domain, where
+ * each label consists of lowercase letters, digits, commas and dashes,
+ * followed by a slash. This is the same as the regular expression
+ * <code>https?://([a-z0-9,-]+[.])*domain/.*</code> on the lowercase
+ * referer, but the check is a single scan without allocations. The origins
+ * are kept in a small bounded cache so that repeated requests from the same
+ * origin return the same string instance.
+ */
+public class OriginPolicy
+{
+
+	/**
+	 * Policy for draw.io and its subdomains.
+	 */
+	public static final OriginPolicy DRAW_IO = new OriginPolicy("draw.io");
+
+	/**
+	 * Policy for quipelements.com and its subdomains.
+	 */
+	public static final OriginPolicy QUIP_ELEMENTS = new OriginPolicy(
+			"quipelements.com");
+
+	/**
+	 * Number of slots in the decision cache. Must be a power of two.
+	 */
+	public static final int CACHE_SIZE = 256;
+
+	/**
+	 * Holds the lowercase domain.
+	 */
+	protected final String domain;
+
+	/**
+	 * Holds the cached decisions. Slots are replaced on collision.
+	 */
+	protected final Decision[] cache = new Decision[CACHE_SIZE];
+
+	/**
+	 * Constructs a new policy for the given domain and its subdomains.
+	 */
+	public OriginPolicy(String domain)
+	{
+		this.domain = domain.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns true if the given referer belongs to the domain.
+	 */
+	public boolean isAllowed(String referer)
+	{
+		return getOrigin(referer) != null;
+	}
+
+	/**
+	 * Returns the lowercase origin (scheme and host) of the given referer if
+	 * it belongs to the domain or null otherwise.
+	 */
+	public String getOrigin(String referer)
+	{
+		if (referer == null)
+		{
+			return null;
+		}
+
+		int start;
+
+		if (matches(referer, 0, "https://"))
+		{
+			start = 8;
+		}
+		else if (matches(referer, 0, "http://"))
+		{
+			start = 7;
+		}
+		else
+		{
+			return null;
+		}
+
+		int len = referer.length();
+		int hash = start;
+		int end = start;
+		char prev = '.';
+
+		// Scans the host for allowed characters and empty labels
+		while (end < len)
+		{
+			char c = toLowerCase(referer.charAt(end));
+
+			if (c == '/')
+			{
+				break;
+			}
+			else if (c == '.')
+			{
+				if (prev == '.')
+				{
+					return null;
+				}
+			}
+			else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+					|| c == ',' || c == '-'))
+			{
+				return null;
+			}
+
+			hash = 31 * hash + c;
+			prev = c;
+			end++;
+		}
+
+		int hostLength = end - start;
+		int domainLength = domain.length();
+
+		if (end == len || hostLength < domainLength
+				|| !matches(referer, end - domainLength, domain)
+				|| (hostLength > domainLength
+						&& referer.charAt(end - domainLength - 1) != '.'))
+		{
+			return null;
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+		Decision decision = cache[slot];
+
+		if (decision == null || decision.key.length() != end
+				|| !referer.regionMatches(0, decision.key, 0, end))
+		{
+			String key = referer.substring(0, end);
+			decision = new Decision(key, key.toLowerCase(Locale.ENGLISH));
+			cache[slot] = decision;
+		}
+
+		return decision.origin;
+	}
+
+	/**
+	 * Returns the lowercase version of the given ASCII character. Other
+	 * characters are returned unchanged.
+	 */
+	protected static char toLowerCase(char c)
+	{
+		return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Returns true if the given string contains the given lowercase ASCII
+	 * string at the given offset ignoring the case of ASCII letters.
+	 */
+	protected static boolean matches(String s, int offset, String lower)
+	{
+		if (offset < 0 || s.length() - offset < lower.length())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < lower.length(); i++)
+		{
+			if (toLowerCase(s.charAt(offset + i)) != lower.charAt(i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Immutable cache entry that maps from the scheme and host of a referer
+	 * to the lowercase origin.
+	 */
+	protected static class Decision
+	{
+
+		final String key;
+
+		final String origin;
+
+		Decision(String key, String origin)
+		{
+			this.key = key;
+			this.origin = origin;
+		}
+
+	}
+
+}
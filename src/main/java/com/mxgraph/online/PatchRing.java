@@ -0,0 +1,554 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * In-process history of the most recent patches of each diagram. This is
+ * used if the patch chain in the store is broken, eg. if a link was evicted
+ * or has expired. The last patches of a diagram are kept in a ring. If the
+ * ring is full, the oldest patches are compacted into a checkpoint which
+ * holds the data of a run of consecutive patches as a single JSON fragment.
+ * Checkpoints are kept until the maximum number of checkpoints is reached
+ * or the ring exceeds its share of the maximum size, so that a single
+ * diagram cannot evict the history of all other diagrams.
+ *
+ * Since patches are opaque (and possibly encrypted) for the server, a
+ * checkpoint cannot be a snapshot of the file, but it allows a client that
+ * is behind by up to the ring size plus the checkpoints to catch up with a
+ * single response.
+ */
+public class PatchRing
+{
+
+	/**
+	 * Separator between two data values in a checkpoint. The data is written
+	 * inside quotes, so this joins two quoted values in the JSON response.
+	 */
+	protected static final String SEPARATOR = "\",\"";
+
+	/**
+	 * Default number of patches in the ring of a diagram.
+	 */
+	public static final int DEFAULT_CAPACITY = 100;
+
+	/**
+	 * Default number of patches per checkpoint.
+	 */
+	public static final int DEFAULT_CHECKPOINT_SIZE = 25;
+
+	/**
+	 * Default number of checkpoints per diagram.
+	 */
+	public static final int DEFAULT_MAX_CHECKPOINTS = 8;
+
+	/**
+	 * Default number of diagrams.
+	 */
+	public static final int DEFAULT_MAX_DIAGRAMS = 1000;
+
+	/**
+	 * Default maximum estimated size (in bytes) of all diagrams.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+
+	/**
+	 * Default fraction of the maximum size that a single diagram may use.
+	 */
+	public static final double DEFAULT_RING_SHARE = 0.125;
+
+	/**
+	 * Maximum number of patches in the ring of a diagram.
+	 */
+	protected final int capacity;
+
+	/**
+	 * Number of patches that are compacted into a checkpoint.
+	 */
+	protected final int checkpointSize;
+
+	/**
+	 * Maximum number of checkpoints per diagram.
+	 */
+	protected final int maxCheckpoints;
+
+	/**
+	 * Maximum estimated size (in bytes) of all diagrams.
+	 */
+	protected final long maxSize;
+
+	/**
+	 * Maximum estimated size (in bytes) of a single diagram.
+	 */
+	protected final long maxRingSize;
+
+	/**
+	 * Estimated size (in bytes) of all diagrams.
+	 */
+	protected final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Maps from diagram IDs to rings in access order.
+	 */
+	protected final LinkedHashMap<String, Ring> rings;
+
+	/**
+	 * Constructs a new history with the default sizes.
+	 */
+	public PatchRing()
+	{
+		this(DEFAULT_CAPACITY, DEFAULT_CHECKPOINT_SIZE,
+				DEFAULT_MAX_CHECKPOINTS, DEFAULT_MAX_DIAGRAMS,
+				DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructs a new history with the given sizes.
+	 */
+	@SuppressWarnings("serial")
+	public PatchRing(int capacity, int checkpointSize, int maxCheckpoints,
+			final int maxDiagrams, long maxSize)
+	{
+		this.capacity = capacity;
+		this.checkpointSize = Math.min(checkpointSize, capacity);
+		this.maxCheckpoints = maxCheckpoints;
+		this.maxSize = maxSize;
+		this.maxRingSize = (long) (maxSize * DEFAULT_RING_SHARE);
+
+		rings = new LinkedHashMap<String, Ring>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest)
+			{
+				if (size() > maxDiagrams)
+				{
+					eldest.getValue().clear();
+
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Adds the given patch of the given diagram.
+	 */
+	public void add(String id, String from, CacheEntry entry)
+	{
+		Segment segment = new Segment(from, entry);
+		boolean added = false;
+
+		// Retries if the ring was evicted before its lock was acquired
+		while (!added)
+		{
+			Ring ring;
+
+			synchronized (rings)
+			{
+				ring = rings.get(id);
+
+				if (ring == null)
+				{
+					ring = new Ring();
+					rings.put(id, ring);
+				}
+			}
+
+			synchronized (ring)
+			{
+				if (!ring.removed)
+				{
+					ring.add(segment);
+
+					if (ring.tail.size() > capacity)
+					{
+						ring.compact();
+					}
+
+					ring.trim(maxRingSize);
+					added = true;
+				}
+			}
+		}
+
+		// Evicts least recently used diagrams if the total size is exceeded
+		if (size.get() > maxSize)
+		{
+			synchronized (rings)
+			{
+				Iterator<Map.Entry<String, Ring>> it = rings.entrySet()
+						.iterator();
+
+				while (size.get() > maxSize && it.hasNext())
+				{
+					Map.Entry<String, Ring> e = it.next();
+
+					if (!e.getKey().equals(id))
+					{
+						e.getValue().clear();
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the entries of the patch chain from the given etag to the given
+	 * etag with the same semantics as {@link PatchStore#getChain}. Entries
+	 * that are taken from a checkpoint contain the data of several patches.
+	 */
+	public List<CacheEntry> getChain(String id, String from, String to)
+	{
+		List<CacheEntry> result = new ArrayList<CacheEntry>();
+		Ring ring;
+
+		synchronized (rings)
+		{
+			ring = rings.get(id);
+		}
+
+		if (ring != null)
+		{
+			synchronized (ring)
+			{
+				Map<String, Position> positions = ring.getPositions();
+				HashSet<String> seen = new HashSet<String>();
+				String current = from;
+
+				while (seen.add(current))
+				{
+					Position pos = positions.get(current);
+
+					if (pos == null)
+					{
+						result.clear();
+						break;
+					}
+
+					CacheEntry entry = pos.segment.getEntry(pos.index, to);
+					result.add(entry);
+					current = entry.getEtag();
+
+					if (current.equals(to))
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Holds the checkpoints and the most recent patches of a diagram.
+	 */
+	protected class Ring
+	{
+
+		/**
+		 * Holds the checkpoints, oldest first.
+		 */
+		final ArrayDeque<Segment> checkpoints = new ArrayDeque<Segment>();
+
+		/**
+		 * Holds the most recent patches, oldest first.
+		 */
+		final ArrayDeque<Segment> tail = new ArrayDeque<Segment>();
+
+		/**
+		 * Estimated size of all segments in this ring.
+		 */
+		long ringSize = 0;
+
+		/**
+		 * True if this ring was evicted. No segments may be added to a
+		 * removed ring since its size is no longer subtracted.
+		 */
+		boolean removed = false;
+
+		/**
+		 * Adds the given segment to the tail.
+		 */
+		synchronized void add(Segment segment)
+		{
+			tail.add(segment);
+			ringSize += segment.getSize();
+			size.addAndGet(segment.getSize());
+		}
+
+		/**
+		 * Removes all segments and marks this ring as removed.
+		 */
+		synchronized void clear()
+		{
+			removed = true;
+			size.addAndGet(-ringSize);
+			ringSize = 0;
+			checkpoints.clear();
+			tail.clear();
+		}
+
+		/**
+		 * Removes the oldest checkpoints and patches while the ring is larger
+		 * than the given size. The newest patch is never removed.
+		 */
+		void trim(long max)
+		{
+			while (ringSize > max && !checkpoints.isEmpty())
+			{
+				Segment removed = checkpoints.pollFirst();
+				ringSize -= removed.getSize();
+				size.addAndGet(-removed.getSize());
+			}
+
+			while (ringSize > max && tail.size() > 1)
+			{
+				Segment removed = tail.pollFirst();
+				ringSize -= removed.getSize();
+				size.addAndGet(-removed.getSize());
+			}
+		}
+
+		/**
+		 * Moves the oldest patches of the tail into checkpoints. A run of
+		 * patches that is not a chain is split into several checkpoints.
+		 */
+		void compact()
+		{
+			List<Segment> run = new ArrayList<Segment>(checkpointSize);
+
+			for (int i = 0; i < checkpointSize && !tail.isEmpty(); i++)
+			{
+				Segment next = tail.peekFirst();
+
+				if (run.size() > 0 && !run.get(run.size() - 1).getTo()
+						.equals(next.getFrom()))
+				{
+					addCheckpoint(run);
+					run.clear();
+				}
+
+				Segment segment = tail.pollFirst();
+				ringSize -= segment.getSize();
+				size.addAndGet(-segment.getSize());
+				run.add(segment);
+			}
+
+			addCheckpoint(run);
+		}
+
+		/**
+		 * Adds a checkpoint for the given chain of single patches.
+		 */
+		void addCheckpoint(List<Segment> run)
+		{
+			if (run.size() > 0)
+			{
+				Segment checkpoint = new Segment(run);
+				checkpoints.add(checkpoint);
+				ringSize += checkpoint.getSize();
+				size.addAndGet(checkpoint.getSize());
+
+				while (checkpoints.size() > maxCheckpoints)
+				{
+					Segment removed = checkpoints.pollFirst();
+					ringSize -= removed.getSize();
+					size.addAndGet(-removed.getSize());
+				}
+			}
+		}
+
+		/**
+		 * Returns a map from all etags to their position in the segments.
+		 * Newer segments replace older ones for the same etag.
+		 */
+		Map<String, Position> getPositions()
+		{
+			Map<String, Position> result = new HashMap<String, Position>();
+			Iterator<Segment> it = checkpoints.iterator();
+
+			while (it.hasNext())
+			{
+				it.next().addPositions(result);
+			}
+
+			it = tail.iterator();
+
+			while (it.hasNext())
+			{
+				it.next().addPositions(result);
+			}
+
+			return result;
+		}
+
+	}
+
+	/**
+	 * Holds a single patch or a checkpoint for a chain of patches. The data
+	 * of a checkpoint is joined with the separator and the offsets point to
+	 * the start of each patch in the joined data.
+	 */
+	protected static class Segment
+	{
+
+		/**
+		 * Holds the etags of the chain, including the final etag.
+		 */
+		final String[] etags;
+
+		/**
+		 * Holds the secrets of the patches.
+		 */
+		final String[] secrets;
+
+		/**
+		 * Holds the start offset of each patch in the data plus the end of
+		 * the data plus the length of the separator.
+		 */
+		final int[] offsets;
+
+		/**
+		 * Holds the data of all patches.
+		 */
+		final String data;
+
+		/**
+		 * Constructs a segment for a single patch.
+		 */
+		Segment(String from, CacheEntry entry)
+		{
+			etags = new String[] { from, entry.getEtag() };
+			secrets = new String[] { entry.getSecret() };
+			offsets = new int[] { 0,
+					entry.getData().length() + SEPARATOR.length() };
+			data = entry.getData();
+		}
+
+		/**
+		 * Constructs a checkpoint for the given chain of segments.
+		 */
+		Segment(List<Segment> run)
+		{
+			int n = run.size();
+			etags = new String[n + 1];
+			secrets = new String[n];
+			offsets = new int[n + 1];
+			StringBuilder buffer = new StringBuilder();
+
+			for (int i = 0; i < n; i++)
+			{
+				Segment s = run.get(i);
+
+				if (i > 0)
+				{
+					buffer.append(SEPARATOR);
+				}
+
+				etags[i] = s.getFrom();
+				secrets[i] = s.secrets[0];
+				offsets[i] = buffer.length();
+				buffer.append(s.data);
+			}
+
+			etags[n] = run.get(n - 1).getTo();
+			offsets[n] = buffer.length() + SEPARATOR.length();
+			data = buffer.toString();
+		}
+
+		/**
+		 * Returns the estimated size of this segment in bytes.
+		 */
+		long getSize()
+		{
+			long result = 64 + 2 * data.length() + 16 * offsets.length;
+
+			for (String etag : etags)
+			{
+				result += 2 * etag.length();
+			}
+
+			return result;
+		}
+
+		String getFrom()
+		{
+			return etags[0];
+		}
+
+		String getTo()
+		{
+			return etags[etags.length - 1];
+		}
+
+		/**
+		 * Adds the position of each etag in this segment to the given map.
+		 */
+		void addPositions(Map<String, Position> positions)
+		{
+			for (int i = 0; i < secrets.length; i++)
+			{
+				positions.put(etags[i], new Position(this, i));
+			}
+		}
+
+		/**
+		 * Returns an entry for the patches from the given index up to the
+		 * given etag or the end of the segment.
+		 */
+		CacheEntry getEntry(int index, String to)
+		{
+			int end = secrets.length;
+
+			for (int i = index + 1; i < end; i++)
+			{
+				if (etags[i].equals(to))
+				{
+					end = i;
+					break;
+				}
+			}
+
+			String value = (index == 0 && end == secrets.length) ? data
+					: data.substring(offsets[index],
+							offsets[end] - SEPARATOR.length());
+
+			return new CacheEntry(etags[end], value, secrets[end - 1]);
+		}
+
+	}
+
+	/**
+	 * Holds the position of an etag in a segment.
+	 */
+	protected static class Position
+	{
+
+		final Segment segment;
+
+		final int index;
+
+		Position(Segment segment, int index)
+		{
+			this.segment = segment;
+			this.index = index;
+		}
+
+	}
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * Storage for the patches that are exchanged between collaborators via the
+ * cache servlet. Entries are keyed by diagram ID and the etag the patch
+ * applies to.
+ */
+public interface PatchStore
+{
+
+	/**
+	 * Adds the given entry for the patch that starts at the given etag.
+	 * Existing entries are not replaced.
+	 */
+	void put(String id, String from, CacheEntry entry);
+
+	/**
+	 * Returns the entry for the patch that starts at the given etag or null
+	 * if no such entry exists or if the entry has expired.
+	 */
+	CacheEntry get(String id, String from);
+
+	/**
+	 * Returns the entries of the patch chain that starts at the given etag
+	 * and ends with the entry whose etag is the given target etag. The chain
+	 * is resolved in a single batch where possible. Returns an empty list if
+	 * a link in the chain is missing. If the chain contains a cycle then the
+	 * entries up to the cycle are returned.
+	 */
+	List<CacheEntry> getChain(String id, String from, String to);
+
+	/**
+	 * Writes the statistics of this store as plain text.
+	 */
+	void writeStats(PrintWriter writer);
+
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.mxgraph.online.CacheServlet.CacheEntry;
+
+/**
+ * Registry of clients that wait for changes of a diagram. Subscribers are
+ * either streams of server-sent events that stay open until the timeout or
+ * long-poll requests that are completed with the first event. Events are
+ * written as JSON objects with an event property of patch or message.
+ * Publishing only queues the event for each subscriber and the events are
+ * written on a thread of the async context so that a slow subscriber does
+ * not block the request that publishes the event.
+ */
+public class PatchSubscriptions
+{
+
+	/**
+	 * Default timeout for subscriptions in milliseconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 25000;
+
+	/**
+	 * Default maximum number of open subscriptions.
+	 */
+	public static final int DEFAULT_MAX_SUBSCRIBERS = 10000;
+
+	/**
+	 * Maximum number of events that are queued for a subscriber. Subscribers
+	 * that do not keep up are closed.
+	 */
+	public static final int MAX_QUEUED_EVENTS = 100;
+
+	/**
+	 * Maps from diagram IDs to the waiting subscribers.
+	 */
+	protected final ConcurrentHashMap<String, Set<Subscriber>> waiters = new ConcurrentHashMap<String, Set<Subscriber>>();
+
+	/**
+	 * Number of open subscriptions.
+	 */
+	protected final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Timeout for subscriptions in milliseconds.
+	 */
+	protected final long timeout;
+
+	/**
+	 * Maximum number of open subscriptions.
+	 */
+	protected final int maxSubscribers;
+
+	/**
+	 * Constructs a new registry with the default timeout and limit.
+	 */
+	public PatchSubscriptions()
+	{
+		this(DEFAULT_TIMEOUT, DEFAULT_MAX_SUBSCRIBERS);
+	}
+
+	/**
+	 * Constructs a new registry with the given timeout and limit.
+	 */
+	public PatchSubscriptions(long timeout, int maxSubscribers)
+	{
+		this.timeout = timeout;
+		this.maxSubscribers = maxSubscribers;
+	}
+
+	/**
+	 * Returns the number of open subscriptions.
+	 */
+	public int getSubscriberCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Adds a subscriber for the given diagram ID to the given async context.
+	 * The secret is used to filter patches, the sid is used to skip messages
+	 * from the subscriber itself. Returns false if the maximum number of
+	 * subscriptions is reached.
+	 */
+	public boolean subscribe(String id, String secret, String sid,
+			AsyncContext context, boolean stream) throws IOException
+	{
+		if (count.incrementAndGet() > maxSubscribers)
+		{
+			count.decrementAndGet();
+
+			return false;
+		}
+
+		boolean added = false;
+
+		try
+		{
+			added = register(id, secret, sid, context, stream);
+		}
+		finally
+		{
+			if (!added)
+			{
+				count.decrementAndGet();
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Prepares the response and adds the subscriber to the registry.
+	 */
+	protected boolean register(String id, String secret, String sid,
+			AsyncContext context, boolean stream) throws IOException
+	{
+		HttpServletResponse response = (HttpServletResponse) context
+				.getResponse();
+		response.setCharacterEncoding("UTF-8");
+
+		if (stream)
+		{
+			response.setContentType("text/event-stream");
+			response.setHeader("Cache-Control", "no-cache");
+			response.setStatus(HttpServletResponse.SC_OK);
+
+			// Commits the headers so that the client sees the open stream
+			response.flushBuffer();
+		}
+		else
+		{
+			// Disables wire-compression
+			response.setContentType("application/octet-stream");
+		}
+
+		final Subscriber subscriber = new Subscriber(id, secret, sid,
+				context, stream);
+		context.setTimeout(timeout);
+		context.addListener(new AsyncListener()
+		{
+			public void onTimeout(AsyncEvent event) throws IOException
+			{
+				subscriber.close(true);
+			}
+
+			public void onError(AsyncEvent event) throws IOException
+			{
+				subscriber.close(false);
+			}
+
+			public void onComplete(AsyncEvent event) throws IOException
+			{
+				remove(subscriber);
+			}
+
+			public void onStartAsync(AsyncEvent event) throws IOException
+			{
+				// ignore
+			}
+		});
+
+		Set<Subscriber> set = waiters.get(id);
+
+		// Retries if the set was removed concurrently
+		while (true)
+		{
+			if (set == null)
+			{
+				Set<Subscriber> created = ConcurrentHashMap.newKeySet();
+				set = waiters.putIfAbsent(id, created);
+
+				if (set == null)
+				{
+					set = created;
+				}
+			}
+
+			set.add(subscriber);
+
+			if (waiters.get(id) == set)
+			{
+				break;
+			}
+
+			set.remove(subscriber);
+			set = null;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the given subscriber from the registry.
+	 */
+	protected void remove(Subscriber subscriber)
+	{
+		Set<Subscriber> set = waiters.get(subscriber.id);
+
+		if (set != null && set.remove(subscriber))
+		{
+			count.decrementAndGet();
+
+			if (set.isEmpty())
+			{
+				waiters.remove(subscriber.id, set);
+			}
+		}
+	}
+
+	/**
+	 * Sends the given patch to all subscribers of the given diagram ID that
+	 * know the secret of the patch.
+	 */
+	public void publishPatch(String id, String from, CacheEntry entry)
+	{
+		Set<Subscriber> set = waiters.get(id);
+
+		if (set != null)
+		{
+			String json = "{\"event\":\"patch\",\"from\":\""
+					+ StringEscapeUtils.escapeJson(from) + "\",\"to\":\""
+					+ StringEscapeUtils.escapeJson(entry.getEtag())
+					+ "\",\"data\":\""
+					+ StringEscapeUtils.escapeJson(entry.getData()) + "\"}";
+
+			for (Subscriber subscriber : set)
+			{
+				if (entry.getSecret() == null
+						|| entry.getSecret().equals(subscriber.secret))
+				{
+					subscriber.send(json);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the given message to all subscribers of the given diagram ID
+	 * except the sender with the given sid.
+	 */
+	public void publishMessage(String id, String msg, String sid)
+	{
+		Set<Subscriber> set = waiters.get(id);
+
+		if (set != null)
+		{
+			String json = "{\"event\":\"message\",\"data\":\""
+					+ StringEscapeUtils.escapeJson(msg) + "\"}";
+
+			for (Subscriber subscriber : set)
+			{
+				if (sid == null || !sid.equals(subscriber.sid))
+				{
+					subscriber.send(json);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Holds a waiting client and the events that have not been written.
+	 */
+	protected class Subscriber implements Runnable
+	{
+
+		final String id;
+
+		final String secret;
+
+		final String sid;
+
+		final AsyncContext context;
+
+		final boolean stream;
+
+		/**
+		 * Holds the events that have not been written.
+		 */
+		final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+
+		final AtomicInteger queued = new AtomicInteger();
+
+		/**
+		 * True if a thread has been started to write the queue.
+		 */
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		volatile boolean overflow = false;
+
+		volatile boolean closed = false;
+
+		Subscriber(String id, String secret, String sid, AsyncContext context,
+				boolean stream)
+		{
+			this.id = id;
+			this.secret = secret;
+			this.sid = sid;
+			this.context = context;
+			this.stream = stream;
+		}
+
+		/**
+		 * Queues the given event and starts a thread to write the queue if
+		 * none is running. This does not block.
+		 */
+		void send(String json)
+		{
+			if (!closed)
+			{
+				if (queued.incrementAndGet() > MAX_QUEUED_EVENTS)
+				{
+					overflow = true;
+				}
+				else
+				{
+					queue.add(json);
+				}
+
+				schedule();
+			}
+		}
+
+		/**
+		 * Starts a thread of the async context to write the queue.
+		 */
+		void schedule()
+		{
+			if (scheduled.compareAndSet(false, true))
+			{
+				try
+				{
+					context.start(this);
+				}
+				catch (IllegalStateException e)
+				{
+					scheduled.set(false);
+					close(false);
+				}
+			}
+		}
+
+		/**
+		 * Writes the queued events.
+		 */
+		public void run()
+		{
+			try
+			{
+				String json = null;
+
+				while (!overflow && (json = queue.poll()) != null)
+				{
+					queued.decrementAndGet();
+					write(json);
+				}
+
+				if (overflow)
+				{
+					queue.clear();
+					close(false);
+				}
+			}
+			finally
+			{
+				scheduled.set(false);
+			}
+
+			// Handles events that were added after the queue was empty
+			if (!closed && !queue.isEmpty())
+			{
+				schedule();
+			}
+		}
+
+		/**
+		 * Writes the given event. Long-poll requests are completed after the
+		 * first event.
+		 */
+		synchronized void write(String json)
+		{
+			if (!closed)
+			{
+				try
+				{
+					HttpServletResponse response = (HttpServletResponse) context
+							.getResponse();
+					PrintWriter writer = response.getWriter();
+
+					if (stream)
+					{
+						writer.write("data: ");
+						writer.write(json);
+						writer.write("\n\n");
+						writer.flush();
+
+						if (writer.checkError())
+						{
+							close(false);
+						}
+					}
+					else
+					{
+						response.setStatus(HttpServletResponse.SC_OK);
+						writer.write(json);
+						close(false);
+					}
+				}
+				catch (IOException | IllegalStateException e)
+				{
+					close(false);
+				}
+			}
+		}
+
+		/**
+		 * Completes the request if it is still open. Long-poll requests that
+		 * time out are answered with no content.
+		 */
+		synchronized void close(boolean timeout)
+		{
+			if (!closed)
+			{
+				closed = true;
+				remove(this);
+
+				if (timeout && !stream)
+				{
+					((HttpServletResponse) context.getResponse())
+							.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				}
+
+				try
+				{
+					context.complete();
+				}
+				catch (IllegalStateException e)
+				{
+					// ignore
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the application/x-www-form-urlencoded bytes of the given stream
+ * while reading. Escape sequences are replaced with the encoded byte and plus
+ * signs with spaces, all other bytes are returned as is. This is the same as
+ * URLDecoder.decode with ISO-8859-1 followed by getBytes with ISO-8859-1
+ * without holding the complete value in memory. Malformed escape sequences
+ * throw an IllegalArgumentException as in URLDecoder.
+ */
+public class PercentDecodingInputStream extends FilterInputStream
+{
+
+	/**
+	 * Default size of the buffer for the encoded bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Holds the encoded bytes that have been read.
+	 */
+	protected final byte[] buffer;
+
+	protected int pos = 0;
+
+	protected int count = 0;
+
+	/**
+	 * Constructs a new stream that decodes the given stream.
+	 */
+	public PercentDecodingInputStream(InputStream in)
+	{
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a new stream that decodes the given stream with the given
+	 * buffer size.
+	 */
+	public PercentDecodingInputStream(InputStream in, int bufferSize)
+	{
+		super(in);
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Returns the next encoded byte or -1 at the end of the stream.
+	 */
+	protected int next() throws IOException
+	{
+		while (pos >= count)
+		{
+			count = in.read(buffer, 0, buffer.length);
+			pos = 0;
+
+			if (count < 0)
+			{
+				count = 0;
+
+				return -1;
+			}
+		}
+
+		return buffer[pos++] & 0xff;
+	}
+
+	/**
+	 *
+	 */
+	public int read() throws IOException
+	{
+		int c = next();
+
+		if (c == '+')
+		{
+			c = ' ';
+		}
+		else if (c == '%')
+		{
+			int hi = Character.digit(next(), 16);
+			int lo = Character.digit(next(), 16);
+
+			if (hi < 0 || lo < 0)
+			{
+				throw new IllegalArgumentException(
+						"Illegal hex characters in escape (%) pattern");
+			}
+
+			c = (hi << 4) | lo;
+		}
+
+		return c;
+	}
+
+	/**
+	 *
+	 */
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int n = 0;
+
+		// Stops at the end of the buffer to avoid blocking
+		while (n < len && (n == 0 || pos < count))
+		{
+			int c = read();
+
+			if (c < 0)
+			{
+				return (n > 0) ? n : -1;
+			}
+
+			b[off + n++] = (byte) c;
+		}
+
+		return n;
+	}
+
+	/**
+	 *
+	 */
+	public long skip(long n) throws IOException
+	{
+		long skipped = 0;
+
+		while (skipped < n && read() >= 0)
+		{
+			skipped++;
+		}
+
+		return skipped;
+	}
+
+	/**
+	 *
+	 */
+	public int available() throws IOException
+	{
+		// Lower bound since each escape sequence is three bytes
+		return (count - pos) / 3;
+	}
+
+	/**
+	 *
+	 */
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Reads the chunks of a PNG image from a stream. The body of a chunk is only
+ * read if it is opened, otherwise it is skipped together with the CRC when
+ * moving to the next chunk so that large image data is not held in memory.
+ * The CRC is not checked.
+ */
+public class PngChunkReader
+{
+
+	/**
+	 * Signature at the start of all PNG images.
+	 */
+	public static final long PNG_SIGNATURE = 0x89504e470d0a1a0aL;
+
+	/**
+	 * Chunk types.
+	 */
+	public static final int CHUNK_IEND = 0x49454e44;
+
+	public static final int CHUNK_TEXT = 0x74455874;
+
+	public static final int CHUNK_ZTXT = 0x7a545874;
+
+	public static final int CHUNK_ITXT = 0x69545874;
+
+	/**
+	 * Maximum length of a keyword in a text chunk.
+	 */
+	public static final int MAX_KEYWORD_LENGTH = 79;
+
+	protected final DataInputStream in;
+
+	/**
+	 * Type and length of the current chunk.
+	 */
+	protected int type = 0;
+
+	protected int length = 0;
+
+	/**
+	 * Holds the stream for the body of the current chunk if it was opened.
+	 */
+	protected BoundedInputStream body = null;
+
+	/**
+	 * Constructs a new reader for the given stream and reads the signature.
+	 * Throws an IOException if the stream is not a PNG image.
+	 */
+	public PngChunkReader(InputStream in) throws IOException
+	{
+		this.in = new DataInputStream(in);
+
+		if (this.in.readLong() != PNG_SIGNATURE)
+		{
+			throw new IOException("Not a PNG image");
+		}
+	}
+
+	/**
+	 * Skips the rest of the current chunk and reads the header of the next
+	 * chunk. Returns false if the end of the image or stream is reached.
+	 */
+	public boolean next() throws IOException
+	{
+		try
+		{
+			// Skips the unread part of the body and the CRC
+			if (body != null)
+			{
+				IOUtils.skip(body, length);
+				IOUtils.skipFully(in, 4);
+				body = null;
+			}
+			else if (type != 0)
+			{
+				IOUtils.skipFully(in, length + 4L);
+			}
+
+			length = in.readInt();
+			type = in.readInt();
+		}
+		catch (EOFException e)
+		{
+			return false;
+		}
+
+		if (length < 0)
+		{
+			throw new IOException("Invalid chunk length");
+		}
+
+		return type != CHUNK_IEND;
+	}
+
+	/**
+	 * Returns the type of the current chunk.
+	 */
+	public int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the length of the body of the current chunk.
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns true if the current chunk is a tEXt, zTXt or iTXt chunk.
+	 */
+	public boolean isText()
+	{
+		return type == CHUNK_TEXT || type == CHUNK_ZTXT || type == CHUNK_ITXT;
+	}
+
+	/**
+	 * Returns a stream for the body of the current chunk. Closing the stream
+	 * does not close the image stream.
+	 */
+	public InputStream openBody()
+	{
+		if (body == null)
+		{
+			body = new BoundedInputStream(in, length);
+			body.setPropagateClose(false);
+		}
+
+		return body;
+	}
+
+	/**
+	 * Reads the null-terminated keyword at the start of the body of the
+	 * current text chunk. Returns null if the keyword is too long.
+	 */
+	public String readKeyword() throws IOException
+	{
+		return readString(openBody(), MAX_KEYWORD_LENGTH);
+	}
+
+	/**
+	 * Reads a null-terminated ISO-8859-1 string with the given maximum
+	 * length from the given stream. Returns null if the string is too long
+	 * or not terminated.
+	 */
+	protected static String readString(InputStream is, int maxLength)
+			throws IOException
+	{
+		StringBuilder result = new StringBuilder();
+		int b = 0;
+
+		while ((b = is.read()) > 0)
+		{
+			if (result.length() == maxLength)
+			{
+				return null;
+			}
+
+			result.append((char) b);
+		}
+
+		return (b == 0) ? result.toString() : null;
+	}
+
+}
@@ -0,0 +1,827 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Two-tier cache for proxied responses. Small bodies are kept in an LRU map
+ * on the heap, larger bodies are written to files in a directory with a
+ * size-capped LRU index. Only bodies that have passed the content check are
+ * stored, so cached responses are served without checking them again.
+ * Freshness is taken from the upstream Cache-Control and Expires headers.
+ * Stale entries with an ETag or Last-Modified header are revalidated with a
+ * conditional request. The disk tier is disabled by default on App Engine.
+ */
+public class ProxyCache
+{
+
+	/**
+	 * Default maximum total size of the bodies on the heap.
+	 */
+	public static final long DEFAULT_MAX_HEAP_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * Default maximum size of a single body on the heap.
+	 */
+	public static final int DEFAULT_MAX_HEAP_ITEM_SIZE = 64 * 1024;
+
+	/**
+	 * Default maximum total size of the bodies on disk outside of App
+	 * Engine.
+	 */
+	public static final long DEFAULT_MAX_DISK_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * Maximum total size of the bodies on disk. Default is 0 on App Engine,
+	 * where the temporary directory is held in the memory of the instance,
+	 * and DEFAULT_MAX_DISK_SIZE otherwise. The disk tier is disabled if this
+	 * is 0.
+	 */
+	public static final long MAX_DISK_SIZE = Long.getLong(
+			"drawio.proxy.maxDiskSize",
+			(SystemProperty.environment.get() != null) ? 0
+					: DEFAULT_MAX_DISK_SIZE);
+
+	/**
+	 * Default maximum size of a single body on disk.
+	 */
+	public static final long DEFAULT_MAX_DISK_ITEM_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * Maximum lifetime in milliseconds for entries without an explicit
+	 * lifetime that is derived from the Last-Modified header.
+	 */
+	public static final long MAX_HEURISTIC_LIFETIME = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Directory for the bodies on disk or null if the disk tier is disabled.
+	 */
+	protected final File dir;
+
+	protected final long maxHeapSize;
+
+	protected final int maxHeapItemSize;
+
+	protected final long maxDiskSize;
+
+	protected final long maxDiskItemSize;
+
+	/**
+	 * Maps from keys to entries on the heap in access order.
+	 */
+	protected final LinkedHashMap<String, Entry> heap = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * Maps from keys to entries on disk in access order.
+	 */
+	protected final LinkedHashMap<String, Entry> disk = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	protected long heapSize = 0;
+
+	protected long diskSize = 0;
+
+	/**
+	 * Counters for the statistics.
+	 */
+	protected final LongAdder hits = new LongAdder();
+
+	protected final LongAdder misses = new LongAdder();
+
+	protected final LongAdder revalidations = new LongAdder();
+
+	protected final LongAdder stores = new LongAdder();
+
+	/**
+	 * Constructs a new cache with the default sizes in the default
+	 * directory. The disk tier is only used if MAX_DISK_SIZE is positive.
+	 */
+	public ProxyCache()
+	{
+		this((MAX_DISK_SIZE > 0) ? getDefaultDirectory() : null,
+				DEFAULT_MAX_HEAP_SIZE, DEFAULT_MAX_HEAP_ITEM_SIZE,
+				MAX_DISK_SIZE, DEFAULT_MAX_DISK_ITEM_SIZE);
+	}
+
+	/**
+	 * Constructs a new cache with the given sizes. Files that are left in
+	 * the given directory are removed. The disk tier is disabled if the
+	 * directory cannot be created.
+	 */
+	public ProxyCache(File dir, long maxHeapSize, int maxHeapItemSize,
+			long maxDiskSize, long maxDiskItemSize)
+	{
+		this.maxHeapSize = maxHeapSize;
+		this.maxHeapItemSize = maxHeapItemSize;
+		this.maxDiskSize = maxDiskSize;
+		this.maxDiskItemSize = maxDiskItemSize;
+
+		if (dir != null && (dir.isDirectory() || dir.mkdirs()))
+		{
+			File[] files = dir.listFiles();
+
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					file.delete();
+				}
+			}
+
+			this.dir = dir;
+		}
+		else
+		{
+			this.dir = null;
+		}
+	}
+
+	/**
+	 * Returns the default directory for the bodies on disk.
+	 */
+	public static File getDefaultDirectory()
+	{
+		return new File(System.getProperty("java.io.tmpdir"),
+				"drawio-proxy-cache");
+	}
+
+	/**
+	 * Returns the cache key for the given URI. The scheme and host are
+	 * converted to lowercase, default ports and the fragment are removed.
+	 */
+	public static String getKey(URI uri)
+	{
+		String scheme = (uri.getScheme() != null)
+				? uri.getScheme().toLowerCase(Locale.ENGLISH)
+				: "";
+		StringBuilder result = new StringBuilder(scheme);
+		result.append("://");
+
+		if (uri.getRawUserInfo() != null)
+		{
+			result.append(uri.getRawUserInfo());
+			result.append('@');
+		}
+
+		if (uri.getHost() != null)
+		{
+			result.append(uri.getHost().toLowerCase(Locale.ENGLISH));
+		}
+
+		int port = uri.getPort();
+
+		if (port >= 0 && !(port == 80 && scheme.equals("http"))
+				&& !(port == 443 && scheme.equals("https")))
+		{
+			result.append(':');
+			result.append(port);
+		}
+
+		String path = uri.getRawPath();
+		result.append((path == null || path.length() == 0) ? "/" : path);
+
+		if (uri.getRawQuery() != null)
+		{
+			result.append('?');
+			result.append(uri.getRawQuery());
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Returns the entry for the given key or null if no entry exists.
+	 */
+	public Entry get(String key)
+	{
+		Entry result;
+
+		synchronized (this)
+		{
+			result = heap.get(key);
+
+			if (result == null)
+			{
+				result = disk.get(key);
+			}
+		}
+
+		if (result != null)
+		{
+			hits.increment();
+		}
+		else
+		{
+			misses.increment();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns true if the given response may be stored.
+	 */
+	public static boolean isCacheable(HttpResponse response)
+	{
+		if (response.getStatusLine().getStatusCode() != 200)
+		{
+			return false;
+		}
+
+		for (Header header : response.getHeaders("Vary"))
+		{
+			for (HeaderElement elt : header.getElements())
+			{
+				if (!elt.getName().equalsIgnoreCase("Accept-Encoding"))
+				{
+					return false;
+				}
+			}
+		}
+
+		for (Header header : response.getHeaders("Cache-Control"))
+		{
+			for (HeaderElement elt : header.getElements())
+			{
+				if (elt.getName().equalsIgnoreCase("no-store")
+						|| elt.getName().equalsIgnoreCase("private"))
+				{
+					return false;
+				}
+			}
+		}
+
+		return getLifetime(response, System.currentTimeMillis()) > 0
+				|| response.getFirstHeader("ETag") != null
+				|| response.getFirstHeader("Last-Modified") != null;
+	}
+
+	/**
+	 * Returns the lifetime of the given response in milliseconds or -1 if
+	 * the response has no freshness information.
+	 */
+	protected static long getLifetime(HttpResponse response, long now)
+	{
+		long maxAge = -1;
+
+		for (Header header : response.getHeaders("Cache-Control"))
+		{
+			for (HeaderElement elt : header.getElements())
+			{
+				String name = elt.getName().toLowerCase(Locale.ENGLISH);
+
+				if (name.equals("no-cache"))
+				{
+					return 0;
+				}
+				else if ((name.equals("s-maxage")
+						|| (name.equals("max-age") && maxAge < 0))
+						&& elt.getValue() != null)
+				{
+					try
+					{
+						maxAge = Math.max(0,
+								Long.parseLong(elt.getValue()) * 1000);
+					}
+					catch (NumberFormatException e)
+					{
+						return 0;
+					}
+				}
+			}
+		}
+
+		if (maxAge >= 0)
+		{
+			return maxAge;
+		}
+
+		Date date = parseDate(response, "Date");
+		long base = (date != null) ? date.getTime() : now;
+		Header expires = response.getFirstHeader("Expires");
+
+		if (expires != null)
+		{
+			Date value = DateUtils.parseDate(expires.getValue());
+
+			return (value != null) ? Math.max(0, value.getTime() - base) : 0;
+		}
+
+		Date lastModified = parseDate(response, "Last-Modified");
+
+		if (lastModified != null)
+		{
+			return Math.min(MAX_HEURISTIC_LIFETIME,
+					Math.max(0, (base - lastModified.getTime()) / 10));
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the date in the given header or null.
+	 */
+	protected static Date parseDate(HttpResponse response, String name)
+	{
+		Header header = response.getFirstHeader(name);
+
+		return (header != null) ? DateUtils.parseDate(header.getValue())
+				: null;
+	}
+
+	/**
+	 * Returns the value of the given header or null.
+	 */
+	protected static String getHeader(HttpResponse response, String name)
+	{
+		Header header = response.getFirstHeader(name);
+
+		return (header != null) ? header.getValue() : null;
+	}
+
+	/**
+	 * Returns a new capture for the body of a response.
+	 */
+	public Capture createCapture()
+	{
+		return new Capture();
+	}
+
+	/**
+	 * Stores the given complete body for the given key and response with
+	 * the given detected content type. Returns the new entry or null if the
+	 * body was too large.
+	 */
+	public Entry put(String key, HttpResponse response, Capture capture,
+			String contentType, long now)
+	{
+		Entry entry = capture.commit(key, response, contentType, now);
+
+		if (entry != null)
+		{
+			stores.increment();
+
+			synchronized (this)
+			{
+				remove(key);
+
+				if (entry.file == null)
+				{
+					heap.put(key, entry);
+					heapSize += entry.size;
+				}
+				else
+				{
+					disk.put(key, entry);
+					diskSize += entry.size;
+				}
+
+				evict();
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Replaces the given entry after a not modified response and returns
+	 * the updated entry. The lifetime of the entry is kept if the response
+	 * has no freshness information.
+	 */
+	public Entry update(Entry entry, HttpResponse response, long now)
+	{
+		long lifetime = getLifetime(response, now);
+		String etag = getHeader(response, "ETag");
+		String lastModified = getHeader(response, "Last-Modified");
+		Entry result = new Entry(entry.key, entry.data, entry.file,
+				entry.size, entry.contentType, (etag != null) ? etag : entry.etag,
+				(lastModified != null) ? lastModified : entry.lastModified,
+				(lifetime >= 0) ? lifetime : entry.lifetime, now);
+		revalidations.increment();
+
+		synchronized (this)
+		{
+			Map<String, Entry> map = (entry.file == null) ? heap : disk;
+
+			if (map.get(entry.key) == entry)
+			{
+				map.put(entry.key, result);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Removes the entry for the given key. Must be called while holding the
+	 * lock of this cache.
+	 */
+	protected void remove(String key)
+	{
+		Entry old = heap.remove(key);
+
+		if (old != null)
+		{
+			heapSize -= old.size;
+		}
+
+		old = disk.remove(key);
+
+		if (old != null)
+		{
+			diskSize -= old.size;
+			old.file.delete();
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries while a tier is too large.
+	 * Must be called while holding the lock of this cache.
+	 */
+	protected void evict()
+	{
+		Iterator<Entry> it = heap.values().iterator();
+
+		while (heapSize > maxHeapSize && it.hasNext())
+		{
+			heapSize -= it.next().size;
+			it.remove();
+		}
+
+		it = disk.values().iterator();
+
+		while (diskSize > maxDiskSize && it.hasNext())
+		{
+			Entry entry = it.next();
+			diskSize -= entry.size;
+			entry.file.delete();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Writes the statistics of this cache as plain text.
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		synchronized (this)
+		{
+			writer.println("cache heap items: " + heap.size());
+			writer.println("cache heap bytes: " + heapSize);
+			writer.println("cache disk items: " + disk.size());
+			writer.println("cache disk bytes: " + diskSize);
+		}
+
+		writer.println("cache hit count: " + hits.sum());
+		writer.println("cache miss count: " + misses.sum());
+		writer.println("cache revalidation count: " + revalidations.sum());
+		writer.println("cache store count: " + stores.sum());
+	}
+
+	/**
+	 * Immutable cache entry. The body is either in memory or in a file.
+	 */
+	public static class Entry
+	{
+
+		final String key;
+
+		final byte[] data;
+
+		final File file;
+
+		final long size;
+
+		final String contentType;
+
+		final String etag;
+
+		final String lastModified;
+
+		final long lifetime;
+
+		final long expires;
+
+		Entry(String key, byte[] data, File file, long size,
+				String contentType, String etag, String lastModified,
+				long lifetime, long now)
+		{
+			this.key = key;
+			this.data = data;
+			this.file = file;
+			this.size = size;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.lifetime = Math.max(0, lifetime);
+			this.expires = now + this.lifetime;
+		}
+
+		/**
+		 * Returns true if the entry can be used without revalidation.
+		 */
+		public boolean isFresh(long now)
+		{
+			return now < expires;
+		}
+
+		/**
+		 * Returns the size of the body.
+		 */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * Returns the detected content type of the body or null.
+		 */
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		/**
+		 * Adds the headers for revalidating this entry to the given request.
+		 */
+		public void addConditionalHeaders(HttpRequest request)
+		{
+			if (etag != null)
+			{
+				request.setHeader("If-None-Match", etag);
+			}
+
+			if (lastModified != null)
+			{
+				request.setHeader("If-Modified-Since", lastModified);
+			}
+		}
+
+		/**
+		 * Returns a stream for the body or null if the file of the entry was
+		 * removed.
+		 */
+		public InputStream openStream()
+		{
+			if (file == null)
+			{
+				return new ByteArrayInputStream(data);
+			}
+
+			try
+			{
+				return new FileInputStream(file);
+			}
+			catch (FileNotFoundException e)
+			{
+				return null;
+			}
+		}
+
+	}
+
+	/**
+	 * Collects the body of a response while it is sent to the client. The
+	 * body is kept in memory up to the maximum heap item size and is then
+	 * moved to a file. Write errors and bodies that exceed the maximum disk
+	 * item size abort the capture without affecting the caller.
+	 */
+	public class Capture extends OutputStream
+	{
+
+		protected ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		protected File file = null;
+
+		protected OutputStream fileStream = null;
+
+		protected long size = 0;
+
+		protected boolean aborted = false;
+
+		protected boolean complete = false;
+
+		/**
+		 * Returns a stream that writes all bytes that are read from the
+		 * given stream to this capture and marks the capture as complete
+		 * when the end of the given stream is reached.
+		 */
+		public InputStream wrap(InputStream in)
+		{
+			return new FilterInputStream(in)
+			{
+				public int read() throws IOException
+				{
+					int b = super.read();
+
+					if (b >= 0)
+					{
+						write(b);
+					}
+					else
+					{
+						complete = true;
+					}
+
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					int n = super.read(b, off, len);
+
+					if (n > 0)
+					{
+						write(b, off, n);
+					}
+					else if (n < 0)
+					{
+						complete = true;
+					}
+
+					return n;
+				}
+
+				public long skip(long n) throws IOException
+				{
+					// Skipped bytes would be missing in the capture
+					discard();
+
+					return super.skip(n);
+				}
+
+				public boolean markSupported()
+				{
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Returns true if the end of the wrapped stream was reached.
+		 */
+		public boolean isComplete()
+		{
+			return complete && !aborted;
+		}
+
+		/**
+		 *
+		 */
+		public void write(int b)
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		/**
+		 *
+		 */
+		public void write(byte[] b, int off, int len)
+		{
+			if (aborted)
+			{
+				return;
+			}
+
+			size += len;
+
+			try
+			{
+				if (fileStream != null)
+				{
+					fileStream.write(b, off, len);
+				}
+				else
+				{
+					buffer.write(b, off, len);
+				}
+
+				if (size > maxDiskItemSize || (size > maxHeapItemSize
+						&& fileStream == null && !spill()))
+				{
+					discard();
+				}
+			}
+			catch (IOException e)
+			{
+				discard();
+			}
+		}
+
+		/**
+		 * Moves the buffer to a file. Returns false if there is no disk tier.
+		 */
+		protected boolean spill() throws IOException
+		{
+			if (dir == null)
+			{
+				return false;
+			}
+
+			file = File.createTempFile("body", ".tmp", dir);
+			fileStream = new FileOutputStream(file);
+			buffer.writeTo(fileStream);
+			buffer = null;
+
+			return true;
+		}
+
+		/**
+		 * Aborts the capture and removes the file.
+		 */
+		public void discard()
+		{
+			if (!aborted)
+			{
+				aborted = true;
+				buffer = null;
+				closeFile();
+
+				if (file != null)
+				{
+					file.delete();
+					file = null;
+				}
+			}
+		}
+
+		/**
+		 * Closes the file stream.
+		 */
+		protected boolean closeFile()
+		{
+			if (fileStream != null)
+			{
+				try
+				{
+					fileStream.close();
+				}
+				catch (IOException e)
+				{
+					return false;
+				}
+				finally
+				{
+					fileStream = null;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Returns an entry for the captured body and ends the capture.
+		 */
+		protected Entry commit(String key, HttpResponse response,
+				String contentType, long now)
+		{
+			Entry result = null;
+
+			if (isComplete() && closeFile())
+			{
+				result = new Entry(key,
+						(file == null) ? buffer.toByteArray() : null, file,
+						size, contentType, getHeader(response, "ETag"),
+						getHeader(response, "Last-Modified"),
+						getLifetime(response, now), now);
+
+				// Keeps the file for the entry
+				file = null;
+			}
+
+			discard();
+
+			return result;
+		}
+
+	}
+
+}
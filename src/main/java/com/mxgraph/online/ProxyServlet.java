@@ -5,23 +5,43 @@
 package com.mxgraph.online;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.PrintWriter;
+import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
 import com.mxgraph.online.Utils.UnsupportedContentException;
 
 /**
@@ -43,6 +63,67 @@ public class ProxyServlet extends HttpServlet
 	 */
 	private static byte[] emptyBytes = new byte[0];
 
+	/**
+	 * Holds the shared response cache.
+	 */
+	protected static ProxyCache cache = null;
+
+	/**
+	 * Coalesces concurrent fetches for the same URL.
+	 */
+	protected static SingleFlight flights = new SingleFlight(
+			SharedHttpClient.SOCKET_TIMEOUT);
+
+	/**
+	 * Remembers URLs and hosts that recently failed.
+	 */
+	protected static NegativeCache negatives = new NegativeCache();
+
+	/**
+	 * Limits the concurrent requests and bytes in flight per upstream host.
+	 */
+	protected static UpstreamGovernor governor = new UpstreamGovernor();
+
+	/**
+	 * Maximum number of remembered content types for ranges.
+	 */
+	public static final int MAX_HEAD_TYPES = 10000;
+
+	/**
+	 * Maps from cache keys to the detected content type of the content with
+	 * a strong entity tag so that ranges of the same content do not need a
+	 * separate request for the head. Guarded by itself.
+	 */
+	protected static Map<String, HeadType> headTypes = new LinkedHashMap<String, HeadType>(
+			16, 0.75f, true)
+	{
+		protected boolean removeEldestEntry(Map.Entry<String, HeadType> eldest)
+		{
+			return size() > MAX_HEAD_TYPES;
+		}
+	};
+
+	/**
+	 * Number of worker threads for async requests.
+	 */
+	public static final int ASYNC_THREADS = Integer
+			.getInteger("drawio.proxy.threads", 64);
+
+	/**
+	 * Maximum number of async requests that wait for a worker.
+	 */
+	public static final int ASYNC_QUEUE_SIZE = 1000;
+
+	/**
+	 * Timeout for async requests in milliseconds.
+	 */
+	public static final long ASYNC_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Holds the workers for async requests.
+	 */
+	protected static ExecutorService executor = null;
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -58,148 +139,888 @@ public class ProxyServlet extends HttpServlet
 			HttpServletResponse response) throws ServletException, IOException
 	{
 		String urlParam = request.getParameter("url");
+		String qs = request.getQueryString();
 
-		if (checkUrlParameter(urlParam))
+		if (qs != null && qs.equals("stats"))
+		{
+			writeStats(response);
+		}
+		else if (checkUrlParameter(urlParam))
 		{
 			// build the UML source from the compressed request parameter
 			String ref = request.getHeader("referer");
 			String ua = request.getHeader("User-Agent");
 			String dom = getCorsDomain(ref, ua);
+			String base64Param = request.getParameter("base64");
+			boolean base64 = base64Param != null && base64Param.equals("1");
+			request.setCharacterEncoding("UTF-8");
+			response.setCharacterEncoding("UTF-8");
 
-			try
+			// Ranges are not supported for base64 encoded responses
+			ByteRange range = (base64) ? null
+					: ByteRange.parse(request.getHeader("Range"),
+							request.getHeader("If-Range"));
+
+			if (request.isAsyncSupported())
 			{
-				request.setCharacterEncoding("UTF-8");
-				response.setCharacterEncoding("UTF-8");
+				processAsync(request, response, urlParam, ref, ua, dom,
+						base64, range);
+			}
+			else
+			{
+				process(response, response.getOutputStream(), urlParam, ref,
+						ua, dom, base64, range);
+			}
+		}
+		else
+		{
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			log.log(Level.SEVERE,
+					"proxy request with invalid URL parameter: url="
+							+ ((urlParam != null) ? urlParam : "[null]"));
+		}
+	}
 
-				URL url = new URL(urlParam);
-				URLConnection connection = url.openConnection();
-				OutputStream out = response.getOutputStream();
-				response.setHeader("Cache-Control",
-						"private, max-age=86400");
+	/**
+	 * Writes the statistics of the upstream hosts, the cache and the shared
+	 * fetches as plain text.
+	 */
+	protected void writeStats(HttpServletResponse response) throws IOException
+	{
+		response.setCharacterEncoding("UTF-8");
+		response.setContentType("text/plain");
+		response.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter writer = response.getWriter();
+		governor.writeStats(writer);
+		getCache().writeStats(writer);
+		negatives.writeStats(writer);
+		writer.println("shared fetch leaders: " + flights.getLeaderCount());
+		writer.println(
+				"shared fetch followers: " + flights.getFollowerCount());
+		writer.flush();
+		writer.close();
+	}
 
-				// Workaround for 451 response from Iconfinder CDN
-				connection.setRequestProperty("User-Agent", "draw.io");
+	/**
+	 * Returns the executor for async requests.
+	 */
+	protected static ExecutorService getExecutor()
+	{
+		synchronized (ProxyServlet.class)
+		{
+			if (executor == null)
+			{
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(
+						ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE),
+						new ThreadFactory()
+						{
+							final AtomicInteger counter = new AtomicInteger();
 
-				if (dom != null && dom.length() > 0)
-				{
-					response.addHeader("Access-Control-Allow-Origin", dom);
-				}
+							public Thread newThread(Runnable r)
+							{
+								Thread thread = new Thread(r, "proxy-fetch-"
+										+ counter.incrementAndGet());
+								thread.setDaemon(true);
+
+								return thread;
+							}
+						});
+				pool.allowCoreThreadTimeOut(true);
+				executor = pool;
+			}
+
+			return executor;
+		}
+	}
+
+	/**
+	 * @see HttpServlet#destroy()
+	 */
+	public void destroy()
+	{
+		synchronized (ProxyServlet.class)
+		{
+			if (executor != null)
+			{
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+
+		super.destroy();
+	}
 
-				// Status code pass-through and follow redirects
-				if (connection instanceof HttpURLConnection)
+	/**
+	 * Releases the container thread and processes the request on a worker
+	 * thread. The response is written with non-blocking output. Returns 503
+	 * if all workers are busy and the queue is full.
+	 */
+	protected void processAsync(HttpServletRequest request,
+			final HttpServletResponse response, final String urlParam,
+			final String ref, final String ua, final String dom,
+			final boolean base64, final ByteRange range) throws IOException
+	{
+		final AsyncContext context = request.startAsync();
+		context.setTimeout(ASYNC_TIMEOUT);
+		final AsyncOutputStream out = new AsyncOutputStream(context,
+				SharedHttpClient.SOCKET_TIMEOUT);
+
+		try
+		{
+			getExecutor().execute(new Runnable()
+			{
+				public void run()
 				{
-					((HttpURLConnection) connection)
-							.setInstanceFollowRedirects(true);
-					int status = ((HttpURLConnection) connection)
-							.getResponseCode();
-					int counter = 0;
-
-					// Follows a maximum of 2 redirects 
-					while (counter++ < 2
-							&& (status == HttpURLConnection.HTTP_MOVED_PERM
-									|| status == HttpURLConnection.HTTP_MOVED_TEMP))
+					try
 					{
-						url = new URL(
-								connection.getHeaderField("Location"));
-						connection = url.openConnection();
-						((HttpURLConnection) connection)
-								.setInstanceFollowRedirects(true);
-
-						// Workaround for 451 response from Iconfinder CDN
-						connection.setRequestProperty("User-Agent",
-								"draw.io");
-						status = ((HttpURLConnection) connection)
-								.getResponseCode();
+						process(response, out, urlParam, ref, ua, dom, base64,
+								range);
 					}
+					finally
+					{
+						out.close();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			out.close();
+		}
+	}
 
-					response.setStatus(status);
+	/**
+	 * Writes the response for the given URL and optional range to the given
+	 * output stream. URLs and hosts that recently failed are answered with
+	 * the remembered status without an upstream request.
+	 */
+	protected void process(HttpServletResponse response, OutputStream out,
+			String urlParam, String ref, String ua, String dom,
+			boolean base64, ByteRange range)
+	{
+		URI uri = null;
+
+		try
+		{
+			uri = SharedHttpClient.toUri(urlParam);
+			response.setHeader("Cache-Control", "private, max-age=86400");
+
+			if (dom != null && dom.length() > 0)
+			{
+				response.addHeader("Access-Control-Allow-Origin", dom);
+			}
+
+			if (!base64)
+			{
+				response.setHeader("Accept-Ranges", "bytes");
+			}
 
-					// Copies input stream to output stream
-					InputStream is = connection.getInputStream();
-					byte[] head = (contentAlwaysAllowed(urlParam))
-							? emptyBytes
-							: Utils.checkStreamContent(is);
-					response.setContentType("application/octet-stream");
-					String base64 = request.getParameter("base64");
-					copyResponse(is, out, head,
-							base64 != null && base64.equals("1"));
+			int status = negatives.getStatus(ProxyCache.getKey(uri),
+					uri.getHost(), System.currentTimeMillis());
+
+			if (status != 0)
+			{
+				response.setStatus(status);
+
+				return;
+			}
+
+			fetch(uri, urlParam, response, out, base64, range);
+			out.flush();
+			out.close();
+
+			log.log(Level.FINEST, "processed proxy request: url="
+					+ ((urlParam != null) ? urlParam : "[null]")
+					+ ", referer=" + ((ref != null) ? ref : "[null]")
+					+ ", user agent=" + ((ua != null) ? ua : "[null]"));
+		}
+		catch (UnknownHostException | FileNotFoundException e)
+		{
+			// do not log 404 and DNS errors
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+			if (e instanceof UnknownHostException)
+			{
+				negatives.putHost(uri.getHost(),
+						HttpServletResponse.SC_NOT_FOUND,
+						NegativeCache.UNKNOWN_HOST_TTL,
+						System.currentTimeMillis());
+			}
+			else
+			{
+				negatives.putUrl(ProxyCache.getKey(uri),
+						HttpServletResponse.SC_NOT_FOUND,
+						NegativeCache.NOT_FOUND_TTL,
+						System.currentTimeMillis());
+			}
+		}
+		catch (UpstreamGovernor.RejectedException e)
+		{
+			response.setHeader("Retry-After", "1");
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			log.log(Level.FINE, "proxy request rejected: url="
+					+ ((urlParam != null) ? urlParam : "[null]") + ", "
+					+ e.getMessage());
+		}
+		catch (UnsupportedContentException e)
+		{
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+
+			// The check of a range depends on the request
+			if (!(e instanceof UnsupportedRangeException))
+			{
+				negatives.putUrl(ProxyCache.getKey(uri),
+						HttpServletResponse.SC_FORBIDDEN,
+						NegativeCache.FORBIDDEN_TTL,
+						System.currentTimeMillis());
+			}
+
+			log.log(Level.SEVERE, "proxy request with invalid content: url="
+					+ ((urlParam != null) ? urlParam : "[null]")
+					+ ", referer=" + ((ref != null) ? ref : "[null]")
+					+ ", user agent=" + ((ua != null) ? ua : "[null]"));
+		}
+		catch (Exception e)
+		{
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			log.log(Level.FINE, "proxy request failed: url="
+					+ ((urlParam != null) ? urlParam : "[null]")
+					+ ", referer=" + ((ref != null) ? ref : "[null]")
+					+ ", user agent=" + ((ua != null) ? ua : "[null]"));
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the shared response cache.
+	 */
+	protected static ProxyCache getCache()
+	{
+		synchronized (ProxyServlet.class)
+		{
+			if (cache == null)
+			{
+				cache = new ProxyCache();
+			}
+
+			return cache;
+		}
+	}
+
+	/**
+	 * Writes the response for the given URL from the cache or from the
+	 * upstream server. Fresh cache entries are used directly, stale entries
+	 * are revalidated with a conditional request. Cacheable responses are
+	 * stored after the content check. Concurrent requests for the same URL
+	 * share a single upstream fetch which is limited by the governor for
+	 * the upstream host. Ranges are served from fresh cache entries or
+	 * passed through to the upstream server.
+	 */
+	protected void fetch(URI uri, String urlParam,
+			HttpServletResponse response, OutputStream out, boolean base64,
+			ByteRange range) throws IOException, UnsupportedContentException
+	{
+		ProxyCache cache = getCache();
+		String key = ProxyCache.getKey(uri);
+		ProxyCache.Entry cached = cache.get(key);
+		long now = System.currentTimeMillis();
+
+		if (cached != null && cached.isFresh(now))
+		{
+			// Returns the complete body if If-Range does not match
+			if (range != null
+					&& range.matches(cached.etag, cached.lastModified))
+			{
+				if (sendCachedRange(cached, range, response, out))
+				{
+					return;
+				}
+			}
+			else if (sendCached(cached, response, out, base64, null))
+			{
+				return;
+			}
+		}
+
+		if (range != null)
+		{
+			fetchRange(uri, key, urlParam, response, out, range);
+
+			return;
+		}
+
+		SingleFlight.Flight created = flights.create(key);
+		SingleFlight.Flight flight = flights.join(created);
+
+		if (flight != created)
+		{
+			sendShared(flight, response, out, base64);
+		}
+		else
+		{
+			UpstreamGovernor.Permit permit = null;
+
+			try
+			{
+				permit = governor.acquire(uri.getHost());
+				fetch(uri, key, cached, urlParam, response, out, base64,
+						flight, permit);
+			}
+			catch (IOException | UnsupportedContentException
+					| RuntimeException e)
+			{
+				if (permit != null
+						&& !(e instanceof UpstreamGovernor.RejectedException))
+				{
+					permit.fail();
+				}
+
+				flight.fail(e);
+
+				throw e;
+			}
+			finally
+			{
+				if (permit != null)
+				{
+					permit.release();
 				}
 
-				out.flush();
-				out.close();
+				flights.finish(flight);
+			}
+		}
+	}
+
+	/**
+	 * Fetches the given URL from the upstream server with the given permit
+	 * and publishes the response to the given flight.
+	 */
+	protected void fetch(URI uri, String key, ProxyCache.Entry cached,
+			String urlParam, HttpServletResponse response, OutputStream out,
+			boolean base64, SingleFlight.Flight flight,
+			UpstreamGovernor.Permit permit)
+			throws IOException, UnsupportedContentException
+	{
+		ProxyCache cache = getCache();
+		long now = System.currentTimeMillis();
+		HttpGet get = new HttpGet(uri);
+
+		// Workaround for 451 response from Iconfinder CDN
+		get.setHeader("User-Agent", "draw.io");
+
+		if (cached != null)
+		{
+			cached.addConditionalHeaders(get);
+		}
+
+		boolean retry = false;
+
+		// Status code pass-through, redirects are followed by the client
+		try (CloseableHttpResponse upstream = SharedHttpClient.getClient()
+				.execute(get))
+		{
+			int status = upstream.getStatusLine().getStatusCode();
+
+			if (status == HttpServletResponse.SC_NOT_MODIFIED
+					&& cached != null)
+			{
+				EntityUtils.consume(upstream.getEntity());
+				retry = !sendCached(cache.update(cached, upstream, now),
+						response, out, base64, flight);
+			}
+			else
+			{
+				sendUpstream(upstream, key, urlParam, response, out, base64,
+						flight, permit);
+			}
+		}
+
+		// Cached file is gone so the request is repeated without the
+		// conditional headers after the first response was closed
+		if (retry)
+		{
+			get.removeHeaders("If-None-Match");
+			get.removeHeaders("If-Modified-Since");
+			fetchUncached(get, key, urlParam, response, out, base64, flight,
+					permit);
+		}
+	}
+
+	/**
+	 * Executes the given request and writes the response.
+	 */
+	protected void fetchUncached(HttpGet get, String key, String urlParam,
+			HttpServletResponse response, OutputStream out, boolean base64,
+			SingleFlight.Flight flight, UpstreamGovernor.Permit permit)
+			throws IOException, UnsupportedContentException
+	{
+		try (CloseableHttpResponse upstream = SharedHttpClient.getClient()
+				.execute(get))
+		{
+			sendUpstream(upstream, key, urlParam, response, out, base64,
+					flight, permit);
+		}
+	}
+
+	/**
+	 * Writes the given upstream response and stores the body in the cache
+	 * if the response is cacheable and the body was read completely. The
+	 * response is published to the given flight after the content check.
+	 * The content type is detected without consuming the stream so that
+	 * the body is copied as is and the detected type is reused for the
+	 * cache and the optional flight. The bytes of the body are reserved
+	 * with the given permit before the response is started.
+	 */
+	protected void sendUpstream(HttpResponse upstream, String key,
+			String urlParam, HttpServletResponse response, OutputStream out,
+			boolean base64, SingleFlight.Flight flight,
+			UpstreamGovernor.Permit permit)
+			throws IOException, UnsupportedContentException
+	{
+		int status = upstream.getStatusLine().getStatusCode();
+		HttpEntity entity = upstream.getEntity();
+		permit.reserve((entity != null) ? entity.getContentLength() : 0);
+		SharedHttpClient.checkStatus(status, urlParam);
+		response.setStatus(status);
+
+		// Copies input stream to output stream
+		InputStream is = (entity != null)
+				? new BufferedInputStream(entity.getContent(), BUFFER_SIZE)
+				: new ByteArrayInputStream(emptyBytes);
+		String contentType = ContentSniffer.peek(is);
+
+		if (contentType == null && !contentAlwaysAllowed(urlParam))
+		{
+			throw new UnsupportedContentException();
+		}
+
+		response.setContentType(getResponseType(contentType, base64));
+		is = permit.wrap(is);
+
+		if (!base64)
+		{
+			copyHeader(upstream, response, "ETag");
+			copyHeader(upstream, response, "Last-Modified");
+		}
+		ProxyCache.Capture capture = (ProxyCache.isCacheable(upstream))
+				? getCache().createCapture()
+				: null;
+
+		try
+		{
+			if (capture != null)
+			{
+				is = capture.wrap(is);
+			}
 
-				log.log(Level.FINEST, "processed proxy request: url="
-						+ ((urlParam != null) ? urlParam : "[null]")
-						+ ", referer=" + ((ref != null) ? ref : "[null]")
-						+ ", user agent=" + ((ua != null) ? ua : "[null]"));
+			if (flight != null)
+			{
+				flight.start(status, contentType);
+				is = flight.wrap(is);
 			}
-			catch (UnknownHostException | FileNotFoundException e)
+
+			copyResponse(is, out, base64);
+
+			if (capture != null && capture.isComplete())
 			{
-				// do not log 404 and DNS errors
-				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				getCache().put(key, upstream, capture, contentType,
+						System.currentTimeMillis());
 			}
-			catch (UnsupportedContentException e)
+		}
+		finally
+		{
+			if (capture != null)
 			{
-				response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-				log.log(Level.SEVERE, "proxy request with invalid content: url="
-						+ ((urlParam != null) ? urlParam : "[null]")
-						+ ", referer=" + ((ref != null) ? ref : "[null]")
-						+ ", user agent=" + ((ua != null) ? ua : "[null]"));
+				capture.discard();
+			}
+		}
+	}
+
+	/**
+	 * Writes the response of the given flight. Failures of the leader are
+	 * thrown so that they are handled in the same way as for the leader.
+	 */
+	protected void sendShared(SingleFlight.Flight flight,
+			HttpServletResponse response, OutputStream out, boolean base64)
+			throws IOException, UnsupportedContentException
+	{
+		// Closing the stream detaches from the flight
+		try (InputStream is = flight.openStream())
+		{
+			int status;
+
+			try
+			{
+				status = flight.awaitStatus();
+			}
+			catch (IOException | UnsupportedContentException
+					| RuntimeException e)
+			{
+				throw e;
 			}
 			catch (Exception e)
 			{
-				response.setStatus(
-						HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-				log.log(Level.FINE, "proxy request failed: url="
-						+ ((urlParam != null) ? urlParam : "[null]")
-						+ ", referer=" + ((ref != null) ? ref : "[null]")
-						+ ", user agent=" + ((ua != null) ? ua : "[null]"));
-				e.printStackTrace();
+				throw new IOException(e);
 			}
+
+			response.setStatus(status);
+			response.setContentType(
+					getResponseType(flight.getContentType(), base64));
+			copyResponse(is, out, base64);
 		}
-		else
+	}
+
+	/**
+	 * Writes the body of the given cache entry and publishes it to the given
+	 * optional flight. Returns false if the body is no longer available.
+	 */
+	protected boolean sendCached(ProxyCache.Entry entry,
+			HttpServletResponse response, OutputStream out, boolean base64,
+			SingleFlight.Flight flight) throws IOException
+	{
+		InputStream is = entry.openStream();
+
+		if (is == null)
 		{
-			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			log.log(Level.SEVERE,
-					"proxy request with invalid URL parameter: url="
-							+ ((urlParam != null) ? urlParam : "[null]"));
+			return false;
+		}
+
+		if (flight != null)
+		{
+			flight.start(HttpServletResponse.SC_OK, entry.getContentType());
+			is = flight.wrap(is);
 		}
+
+		try
+		{
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(
+					getResponseType(entry.getContentType(), base64));
+
+			if (!base64)
+			{
+				setValidators(response, entry);
+			}
+
+			copyResponse(is, out, base64);
+		}
+		finally
+		{
+			is.close();
+		}
+
+		return true;
 	}
 
 	/**
-	 * Dynamically generated CORS header for known domains.
-	 * @throws IOException 
+	 * Writes the given range of the body of the given cache entry. Returns
+	 * false if the body is no longer available.
 	 */
-	protected void copyResponse(InputStream is, OutputStream out, byte[] head,
-			boolean base64) throws IOException
+	protected boolean sendCachedRange(ProxyCache.Entry entry, ByteRange range,
+			HttpServletResponse response, OutputStream out) throws IOException
 	{
-		if (base64)
+		long size = entry.getSize();
+
+		if (!range.isSatisfiable(size))
+		{
+			response.setHeader("Content-Range", "bytes */" + size);
+			response.setStatus(
+					HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+
+			return true;
+		}
+
+		InputStream is = entry.openStream();
+
+		if (is == null)
+		{
+			return false;
+		}
+
+		try
+		{
+			long first = range.getFirst(size);
+			long length = range.getLast(size) - first + 1;
+			IOUtils.skipFully(is, first);
+
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", range.getContentRange(size));
+			response.setHeader("Content-Length", String.valueOf(length));
+			response.setContentType(
+					getResponseType(entry.getContentType(), false));
+			setValidators(response, entry);
+			copyResponse(new BoundedInputStream(is, length), out, false);
+		}
+		finally
+		{
+			is.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Passes the given range through to the upstream server. Partial
+	 * responses are neither cached nor shared. Complete responses, which are
+	 * returned if the range is ignored or If-Range does not match, are
+	 * handled like other upstream responses. If the range does not contain
+	 * the head of the content then the head is checked before the range is
+	 * requested, using the remembered type for the entity tag if possible,
+	 * and the range is requested with If-Range for the entity tag of the
+	 * head so that a complete response is returned if the content changed.
+	 */
+	protected void fetchRange(URI uri, String key, String urlParam,
+			HttpServletResponse response, OutputStream out, ByteRange range)
+			throws IOException, UnsupportedContentException
+	{
+		UpstreamGovernor.Permit permit = governor.acquire(uri.getHost());
+
+		try
 		{
-			try (BufferedInputStream in = new BufferedInputStream(is,
-					BUFFER_SIZE))
+			String ifRange = range.getIfRange();
+			HeadType head = null;
+
+			if (!range.containsHead(ContentSniffer.HEAD_SIZE)
+					&& !contentAlwaysAllowed(urlParam))
 			{
-				StringBuilder result = new StringBuilder();
-				result.append(mxBase64.encodeToString(head, false));
-				byte[] chunk = new byte[BUFFER_SIZE];
-				int len = 0;
+				head = getHeadType(key, ifRange);
 
-				while ((len = in.read(chunk)) == BUFFER_SIZE)
+				if (head == null)
 				{
-					result.append(mxBase64.encodeToString(chunk, false));
+					head = peekHead(uri);
+
+					if (head.contentType != null && head.etag != null)
+					{
+						synchronized (headTypes)
+						{
+							headTypes.put(key, head);
+						}
+					}
 				}
 
-				if (len > 0)
+				if (head.contentType == null)
 				{
-					chunk = Arrays.copyOf(chunk, len);
-					result.append(mxBase64.encodeToString(chunk, false));
+					throw new UnsupportedRangeException();
 				}
 
-				out.write(result.toString().getBytes());
+				if (ifRange == null)
+				{
+					ifRange = head.etag;
+				}
+			}
+
+			HttpGet get = new HttpGet(uri);
+			get.setHeader("User-Agent", "draw.io");
+			get.setHeader("Range", range.toString());
+
+			if (ifRange != null)
+			{
+				get.setHeader("If-Range", ifRange);
+			}
+
+			try (CloseableHttpResponse upstream = SharedHttpClient.getClient()
+					.execute(get))
+			{
+				int status = upstream.getStatusLine().getStatusCode();
+
+				if (status == HttpServletResponse.SC_PARTIAL_CONTENT)
+				{
+					sendPartial(upstream, urlParam, response, out, permit,
+							(head != null) ? head.contentType : null);
+				}
+				else if (status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+				{
+					EntityUtils.consume(upstream.getEntity());
+					copyHeader(upstream, response, "Content-Range");
+					response.setStatus(status);
+				}
+				else
+				{
+					// Forgets the type of content that was changed
+					if (head != null)
+					{
+						synchronized (headTypes)
+						{
+							headTypes.remove(key);
+						}
+					}
+
+					sendUpstream(upstream, key, urlParam, response, out,
+							false, null, permit);
+				}
+			}
+		}
+		catch (IOException | UnsupportedContentException
+				| RuntimeException e)
+		{
+			if (!(e instanceof UpstreamGovernor.RejectedException))
+			{
+				permit.fail();
+			}
+
+			throw e;
+		}
+		finally
+		{
+			permit.release();
+		}
+	}
+
+	/**
+	 * Returns the remembered type of the head for the given cache key or
+	 * null if there is no type or if the given If-Range value is not the
+	 * entity tag of the type.
+	 */
+	protected HeadType getHeadType(String key, String ifRange)
+	{
+		synchronized (headTypes)
+		{
+			HeadType head = headTypes.get(key);
+
+			return (head != null
+					&& (ifRange == null || ifRange.equals(head.etag))) ? head
+							: null;
+		}
+	}
+
+	/**
+	 * Writes the given partial upstream response with the given detected
+	 * type of the head of the content. If the type is null then the range
+	 * contains the head and the content check uses the body.
+	 */
+	protected void sendPartial(HttpResponse upstream, String urlParam,
+			HttpServletResponse response, OutputStream out,
+			UpstreamGovernor.Permit permit, String contentType)
+			throws IOException, UnsupportedContentException
+	{
+		HttpEntity entity = upstream.getEntity();
+		permit.reserve((entity != null) ? entity.getContentLength() : 0);
+		InputStream is = (entity != null)
+				? new BufferedInputStream(entity.getContent(), BUFFER_SIZE)
+				: new ByteArrayInputStream(emptyBytes);
+
+		if (contentType == null)
+		{
+			contentType = ContentSniffer.peek(is);
+
+			if (contentType == null && !contentAlwaysAllowed(urlParam))
+			{
+				throw new UnsupportedRangeException();
+			}
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType(getResponseType(contentType, false));
+		copyHeader(upstream, response, "Content-Range");
+		copyHeader(upstream, response, "Content-Length");
+		copyHeader(upstream, response, "ETag");
+		copyHeader(upstream, response, "Last-Modified");
+		copyResponse(permit.wrap(is), out, false);
+	}
+
+	/**
+	 * Fetches the first bytes of the content at the given URL and returns
+	 * the detected type, which is null if the type is unknown, and the
+	 * strong entity tag of the content.
+	 */
+	protected HeadType peekHead(URI uri) throws IOException
+	{
+		HttpGet get = new HttpGet(uri);
+		get.setHeader("User-Agent", "draw.io");
+		get.setHeader("Range", "bytes=0-" + (ContentSniffer.HEAD_SIZE - 1));
+
+		try (CloseableHttpResponse upstream = SharedHttpClient.getClient()
+				.execute(get))
+		{
+			int status = upstream.getStatusLine().getStatusCode();
+			HttpEntity entity = upstream.getEntity();
+			Header etag = upstream.getFirstHeader("ETag");
+			String contentType = null;
+
+			// Servers that ignore the range return the complete content
+			if (entity != null
+					&& (status == HttpServletResponse.SC_PARTIAL_CONTENT
+							|| status == HttpServletResponse.SC_OK))
+			{
+				contentType = ContentSniffer.peek(new BufferedInputStream(
+						entity.getContent(), ContentSniffer.HEAD_SIZE));
+			}
+
+			return new HeadType((etag != null
+					&& !etag.getValue().startsWith("W/")) ? etag.getValue()
+							: null,
+					contentType);
+		}
+	}
+
+	/**
+	 * Copies the given header of the upstream response if it exists.
+	 */
+	protected void copyHeader(HttpResponse upstream,
+			HttpServletResponse response, String name)
+	{
+		Header header = upstream.getFirstHeader(name);
+
+		if (header != null)
+		{
+			response.setHeader(name, header.getValue());
+		}
+	}
+
+	/**
+	 * Sets the validators of the given cache entry so that clients can use
+	 * If-Range for resuming.
+	 */
+	protected void setValidators(HttpServletResponse response,
+			ProxyCache.Entry entry)
+	{
+		if (entry.etag != null)
+		{
+			response.setHeader("ETag", entry.etag);
+		}
+
+		if (entry.lastModified != null)
+		{
+			response.setHeader("Last-Modified", entry.lastModified);
+		}
+	}
+
+	/**
+	 * Returns the content type of the response for the given detected type.
+	 * Only images and fonts are served with their type, all other content
+	 * and base64 encoded responses use application/octet-stream so that no
+	 * active content is served from this domain.
+	 */
+	protected String getResponseType(String contentType, boolean base64)
+	{
+		return (!base64 && contentType != null
+				&& (contentType.startsWith("image/")
+						|| contentType.startsWith("font/"))) ? contentType
+								: "application/octet-stream";
+	}
+
+	/**
+	 * Writes the input stream to the output stream, optionally as base64
+	 * which is encoded while streaming.
+	 */
+	protected void copyResponse(InputStream is, OutputStream out,
+			boolean base64) throws IOException
+	{
+		if (base64)
+		{
+			// Encodes while copying without line breaks, closing the encoder
+			// writes the final block and padding but keeps the output open
+			try (InputStream in = is;
+					OutputStream enc = new Base64OutputStream(
+							new CloseShieldOutputStream(out), true, 0, null))
+			{
+				Utils.copy(in, enc, BUFFER_SIZE);
 			}
 		}
 		else
 		{
-			out.write(head);
 			Utils.copy(is, out);
 		}
 	}
@@ -228,26 +1049,19 @@ public class ProxyServlet extends HttpServlet
 	 */
 	protected String getCorsDomain(String referer, String userAgent)
 	{
-		String dom = null;
+		String dom = OriginPolicy.DRAW_IO.getOrigin(referer);
 
-		if (referer != null && referer.toLowerCase()
-				.matches("https?://([a-z0-9,-]+[.])*draw[.]io/.*"))
+		if (dom == null)
 		{
-			dom = referer.toLowerCase().substring(0,
-					referer.indexOf(".draw.io/") + 8);
-		}
-		else if (referer != null && referer.toLowerCase()
-				.matches("https?://([a-z0-9,-]+[.])*quipelements[.]com/.*"))
-		{
-			dom = referer.toLowerCase().substring(0,
-					referer.indexOf(".quipelements.com/") + 17);
+			dom = OriginPolicy.QUIP_ELEMENTS.getOrigin(referer);
 		}
+
 		// Enables Confluence/Jira proxy via referer or hardcoded user-agent (for old versions)
 		// UA refers to old FF on macOS so low risk and fixes requests from existing servers
-		else if ((referer != null
+		if (dom == null && ((referer != null
 				&& referer.equals("draw.io Proxy Confluence Server"))
 				|| (userAgent != null && userAgent.equals(
-						"Mozilla/5.0 (Macintosh; Intel Mac OS X 10.12; rv:50.0) Gecko/20100101 Firefox/50.0")))
+						"Mozilla/5.0 (Macintosh; Intel Mac OS X 10.12; rv:50.0) Gecko/20100101 Firefox/50.0"))))
 		{
 			dom = "";
 		}
@@ -255,4 +1069,35 @@ public class ProxyServlet extends HttpServlet
 		return dom;
 	}
 
+	/**
+	 * Thrown if the content check of a range fails. This is not remembered
+	 * in the negative cache since it depends on the request.
+	 */
+	protected static class UnsupportedRangeException
+			extends UnsupportedContentException
+	{
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * Holds the detected type of the head of the content with the given
+	 * strong entity tag.
+	 */
+	protected static class HeadType
+	{
+
+		final String etag;
+
+		final String contentType;
+
+		HeadType(String etag, String contentType)
+		{
+			this.etag = etag;
+			this.contentType = contentType;
+		}
+
+	}
+
 }
@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.pusher.rest.Pusher;
+import com.pusher.rest.data.Event;
+import com.pusher.rest.data.Result;
+
+/**
+ * Outbound queue for Pusher events. Events are added to a bounded queue
+ * and sent as batch triggers by a small pool of workers so that the caller
+ * never waits for the push provider. Each channel is assigned to one worker
+ * so that the events of a channel keep their order and are sent together.
+ * Events are coalesced per channel: a pending event with the same channel,
+ * event name and socket ID is replaced by the newer event, which keeps the
+ * position of the pending event so that a channel with frequent updates is
+ * not starved. Events are dropped if the queue of a worker is full.
+ */
+public class PusherQueue
+{
+
+	private static final Logger log = Logger
+			.getLogger(PusherQueue.class.getName());
+
+	/**
+	 * Maximum number of events in a batch trigger.
+	 */
+	public static final int MAX_BATCH_SIZE = 10;
+
+	/**
+	 * Default number of workers.
+	 */
+	public static final int DEFAULT_WORKERS = 2;
+
+	/**
+	 * Default capacity of the queue of each worker.
+	 */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/**
+	 * Holds the Pusher client.
+	 */
+	protected final Pusher pusher;
+
+	/**
+	 * Holds the queue of each worker.
+	 */
+	protected final List<Pending> queues;
+
+	/**
+	 * Capacity of the queue of each worker.
+	 */
+	protected final int capacity;
+
+	/**
+	 * Holds the workers.
+	 */
+	protected final ExecutorService executor;
+
+	/**
+	 * Counters for the statistics.
+	 */
+	protected final LongAdder sent = new LongAdder();
+
+	protected final LongAdder dropped = new LongAdder();
+
+	protected final LongAdder coalesced = new LongAdder();
+
+	protected final LongAdder failed = new LongAdder();
+
+	protected final LongAdder batches = new LongAdder();
+
+	/**
+	 * Latency of batch triggers in microseconds.
+	 */
+	public final CacheMetrics.Histogram triggerLatency = new CacheMetrics.Histogram(
+			250, 16);
+
+	/**
+	 * Switch to stop the workers.
+	 */
+	protected volatile boolean running = true;
+
+	/**
+	 * Constructs a new queue with the default number of workers and
+	 * capacity.
+	 */
+	public PusherQueue(Pusher pusher)
+	{
+		this(pusher, DEFAULT_WORKERS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new queue with the given number of workers and the given
+	 * capacity per worker.
+	 */
+	public PusherQueue(Pusher pusher, int workers, int capacity)
+	{
+		this.pusher = pusher;
+		this.capacity = capacity;
+		queues = new ArrayList<Pending>(workers);
+		executor = Executors.newFixedThreadPool(workers, new ThreadFactory()
+		{
+			final AtomicInteger counter = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r,
+						"pusher-queue-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		for (int i = 0; i < workers; i++)
+		{
+			final Pending queue = new Pending();
+			queues.add(queue);
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					process(queue);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Adds the given event to the queue or replaces the pending event with
+	 * the same channel, event name and socket ID. Returns false if the event
+	 * was dropped.
+	 */
+	public boolean trigger(String channel, String event, Object data,
+			String socketId)
+	{
+		int h = channel.hashCode();
+		Pending queue = queues.get((h & 0x7fffffff) % queues.size());
+		String key = channel + "\n" + event + "\n" + socketId;
+
+		synchronized (queue)
+		{
+			if (running)
+			{
+				// Replacing keeps the position in the insertion order
+				if (queue.containsKey(key))
+				{
+					queue.put(key, new Event(channel, event, data, socketId));
+					coalesced.increment();
+
+					return true;
+				}
+				else if (queue.size() < capacity)
+				{
+					queue.put(key, new Event(channel, event, data, socketId));
+					queue.notify();
+
+					return true;
+				}
+			}
+		}
+
+		dropped.increment();
+
+		return false;
+	}
+
+	/**
+	 * Sends the events in the given queue until the queue is stopped.
+	 */
+	protected void process(Pending queue)
+	{
+		List<Event> batch = new ArrayList<Event>(MAX_BATCH_SIZE);
+
+		while (running)
+		{
+			try
+			{
+				synchronized (queue)
+				{
+					if (queue.isEmpty())
+					{
+						queue.wait(1000);
+					}
+
+					Iterator<Event> it = queue.values().iterator();
+
+					while (batch.size() < MAX_BATCH_SIZE && it.hasNext())
+					{
+						batch.add(it.next());
+						it.remove();
+					}
+				}
+
+				if (!batch.isEmpty())
+				{
+					send(batch);
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (RuntimeException e)
+			{
+				failed.add(batch.size());
+				batch.clear();
+				log.log(Level.WARNING, "pusher batch failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the given events as a single batch trigger.
+	 */
+	protected void send(List<Event> batch)
+	{
+		long t0 = System.nanoTime();
+		Result result = pusher.trigger(batch);
+		triggerLatency.record((System.nanoTime() - t0) / 1000);
+		batches.increment();
+
+		if (result.getStatus() == Result.Status.SUCCESS)
+		{
+			sent.add(batch.size());
+		}
+		else
+		{
+			failed.add(batch.size());
+			log.log(Level.WARNING, "pusher batch failed: status="
+					+ result.getStatus() + " message=" + result.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of events that are waiting to be sent.
+	 */
+	public int getQueueDepth()
+	{
+		int result = 0;
+
+		for (Pending queue : queues)
+		{
+			synchronized (queue)
+			{
+				result += queue.size();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the number of dropped events.
+	 */
+	public long getDropCount()
+	{
+		return dropped.sum();
+	}
+
+	/**
+	 * Returns the number of events that were replaced by a newer event.
+	 */
+	public long getCoalescedCount()
+	{
+		return coalesced.sum();
+	}
+
+	/**
+	 * Writes the statistics of this queue as plain text.
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		long n = batches.sum();
+
+		writer.println("pusher queue depth: " + getQueueDepth());
+		writer.println("pusher sent count: " + sent.sum());
+		writer.println("pusher drop count: " + dropped.sum());
+		writer.println("pusher coalesced count: " + coalesced.sum());
+		writer.println("pusher fail count: " + failed.sum());
+		writer.println("pusher batch count: " + n);
+		writer.println("pusher avg trigger ms: "
+				+ ((n > 0) ? triggerLatency.getSum() / n / 1000 : 0));
+		writer.println("pusher p99 trigger ms: "
+				+ ((n > 0) ? triggerLatency.getPercentile(99) / 1000 : 0));
+	}
+
+	/**
+	 * Stops the workers. Events that are still in the queue are discarded.
+	 */
+	public void shutdown()
+	{
+		running = false;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Pending events of a worker by channel, event name and socket ID in
+	 * queue order. Guarded by itself.
+	 */
+	@SuppressWarnings("serial")
+	protected static class Pending extends LinkedHashMap<String, Event>
+	{
+
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket rate limiter for arbitrary keys. Each key has a bucket that
+ * holds up to the burst size of tokens and is refilled at a fixed rate. The
+ * number of buckets is bounded: if the limit is reached, buckets that are
+ * full again (ie. idle keys) are removed and new keys are rejected until
+ * there is room.
+ */
+public class RateLimiter
+{
+
+	/**
+	 * Number of tokens that are added per second.
+	 */
+	protected final double rate;
+
+	/**
+	 * Maximum number of tokens in a bucket.
+	 */
+	protected final double burst;
+
+	/**
+	 * Maximum number of buckets.
+	 */
+	protected final int maxKeys;
+
+	/**
+	 * Maps from keys to buckets.
+	 */
+	protected final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	/**
+	 * Constructs a new rate limiter with the given rate (tokens per second),
+	 * burst size and maximum number of keys.
+	 */
+	public RateLimiter(double rate, double burst, int maxKeys)
+	{
+		this.rate = rate;
+		this.burst = burst;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Takes the given number of tokens from the bucket of the given key.
+	 * Returns 0 if the tokens were taken or the number of milliseconds after
+	 * which the tokens will be available otherwise. At most the burst size
+	 * is taken so that larger requests are admitted with a full bucket.
+	 */
+	public long acquire(String key, double tokens)
+	{
+		long now = System.nanoTime();
+		Bucket bucket = buckets.get(key);
+
+		if (bucket == null)
+		{
+			if (buckets.size() >= maxKeys)
+			{
+				purge(now);
+
+				if (buckets.size() >= maxKeys)
+				{
+					return 1000;
+				}
+			}
+
+			Bucket created = new Bucket(now);
+			bucket = buckets.putIfAbsent(key, created);
+
+			if (bucket == null)
+			{
+				bucket = created;
+			}
+		}
+
+		return bucket.acquire(now, tokens);
+	}
+
+	/**
+	 * Removes all buckets that are full.
+	 */
+	protected void purge(long now)
+	{
+		Iterator<Bucket> it = buckets.values().iterator();
+
+		while (it.hasNext())
+		{
+			if (it.next().isFull(now))
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of buckets.
+	 */
+	public int size()
+	{
+		return buckets.size();
+	}
+
+	/**
+	 * Holds the tokens of a key.
+	 */
+	protected class Bucket
+	{
+
+		double tokens = burst;
+
+		long updated;
+
+		Bucket(long now)
+		{
+			updated = now;
+		}
+
+		/**
+		 * Adds the tokens for the time since the last update.
+		 */
+		void refill(long now)
+		{
+			tokens = Math.min(burst, tokens + (now - updated) * rate / 1e9);
+			updated = now;
+		}
+
+		synchronized boolean isFull(long now)
+		{
+			refill(now);
+
+			return tokens >= burst;
+		}
+
+		synchronized long acquire(long now, double n)
+		{
+			refill(now);
+
+			// Requests larger than the burst size take a full bucket
+			n = Math.min(n, burst);
+
+			if (tokens >= n)
+			{
+				tokens -= n;
+
+				return 0;
+			}
+
+			return (long) Math.ceil((n - tokens) * 1000 / rate);
+		}
+
+	}
+
+}
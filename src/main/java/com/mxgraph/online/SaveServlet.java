@@ -1,7 +1,10 @@
 package com.mxgraph.online;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.logging.Logger;
@@ -11,7 +14,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.mxgraph.util.mxBase64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ReaderInputStream;
 
 /**
  * Servlet implementation class SaveServlet
@@ -29,6 +34,16 @@ public class SaveServlet extends HttpServlet
 	private static final Logger log = Logger
 			.getLogger(SaveServlet.class.getName());
 
+	/**
+	 * Buffer size for decoding.
+	 */
+	protected static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Prefix of percent encoded XML.
+	 */
+	protected static final byte[] ENCODED_PREFIX = { '%', '3', 'C' };
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -89,6 +104,91 @@ public class SaveServlet extends HttpServlet
 		return filename;
 	}
 
+	/**
+	 * Returns a stream for the bytes of the given parameter value.
+	 */
+	protected static InputStream toStream(String value) throws IOException
+	{
+		return new ReaderInputStream(new StringReader(value),
+				Utils.CHARSET_FOR_URL_ENCODING);
+	}
+
+	/**
+	 * Returns a stream for the XML in the given data or xml parameter or null
+	 * if both are missing. The data parameter is percent and base64 encoded
+	 * and deflated and is decoded while reading. The stream is buffered and
+	 * the first bytes have been read so that decoding errors at the start
+	 * are thrown before the response is started.
+	 */
+	protected static InputStream openXml(String enc, String xml)
+			throws IOException
+	{
+		InputStream in = null;
+
+		if (enc != null && enc.length() > 0)
+		{
+			// NOTE: Simulate is used on client-side so the value is double-encoded
+			in = Utils.inflate(new Base64InputStream(
+					new PercentDecodingInputStream(toStream(enc))));
+		}
+		else if (xml != null)
+		{
+			in = toStream(xml);
+		}
+		else
+		{
+			return null;
+		}
+
+		in = new BufferedInputStream(in, BUFFER_SIZE);
+
+		// Decoding is optional (no plain text values allowed here so %3C means encoded)
+		if (startsWith(in, ENCODED_PREFIX))
+		{
+			in = new BufferedInputStream(new PercentDecodingInputStream(in),
+					BUFFER_SIZE);
+		}
+
+		// Reads the first bytes to check the encoding
+		in.mark(1);
+		in.read();
+		in.reset();
+
+		return in;
+	}
+
+	/**
+	 * Returns true if the given stream starts with the given bytes. The
+	 * stream must support mark and reset.
+	 */
+	protected static boolean startsWith(InputStream in, byte[] prefix)
+			throws IOException
+	{
+		in.mark(prefix.length);
+
+		try
+		{
+			for (int i = 0; i < prefix.length; i++)
+			{
+				if (in.read() != prefix[i])
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+		finally
+		{
+			in.reset();
+		}
+	}
+
+	/**
+	 * Decodes the data or xml parameter and writes the result to the
+	 * response. The parameter is decoded while writing so that the memory
+	 * does not depend on the size of the payload.
+	 */
 	public static void handlePost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException
 	{
@@ -97,38 +197,22 @@ public class SaveServlet extends HttpServlet
 			long t0 = System.currentTimeMillis();
 			String mime = request.getParameter("mime");
 			String filename = request.getParameter("filename");
-			byte[] data = null;
 
 			// Data in data param is base64 encoded and deflated
 			String enc = request.getParameter("data");
-			String xml = null;
+			String xml = (enc != null && enc.length() > 0) ? null
+					: request.getParameter("xml");
+			long size = -1;
 
-			try
+			try (InputStream in = openXml(enc, xml))
 			{
-				if (enc != null && enc.length() > 0)
-				{
-					// NOTE: Simulate is used on client-side so the value is double-encoded
-					xml = Utils.inflate(mxBase64.decode(URLDecoder
-							.decode(enc, Utils.CHARSET_FOR_URL_ENCODING)
-							.getBytes()));
-				}
-				else
-				{
-					xml = request.getParameter("xml");
-				}
-
-				// Decoding is optional (no plain text values allowed here so %3C means encoded)
-				if (xml != null && xml.startsWith("%3C"))
-				{
-					xml = URLDecoder.decode(xml,
-							Utils.CHARSET_FOR_URL_ENCODING);
-				}
-
 				String binary = request.getParameter("binary");
 
-				if (binary != null && binary.equals("1") && xml != null
+				if (binary != null && binary.equals("1") && in != null
 						&& (mime != null || filename != null))
 				{
+					InputStream decoded = new Base64InputStream(
+							new PercentDecodingInputStream(in));
 					response.setStatus(HttpServletResponse.SC_OK);
 
 					if (filename != null)
@@ -145,13 +229,11 @@ public class SaveServlet extends HttpServlet
 						response.setContentType(mime);
 					}
 
-					response.getOutputStream()
-							.write(mxBase64.decodeFast(URLDecoder.decode(xml,
-									Utils.CHARSET_FOR_URL_ENCODING)));
+					size = IOUtils.copyLarge(decoded,
+							response.getOutputStream(), new byte[BUFFER_SIZE]);
 				}
-				else if (xml != null)
+				else if (in != null)
 				{
-					data = xml.getBytes(Utils.CHARSET_FOR_URL_ENCODING);
 					String format = request.getParameter("format");
 
 					if (format == null)
@@ -198,7 +280,7 @@ public class SaveServlet extends HttpServlet
 					}
 
 					OutputStream out = response.getOutputStream();
-					out.write(data);
+					size = IOUtils.copyLarge(in, out, new byte[BUFFER_SIZE]);
 					out.close();
 				}
 				else
@@ -208,7 +290,9 @@ public class SaveServlet extends HttpServlet
 			}
 			catch (IllegalArgumentException e)
 			{
-				log.warning("Error parsing xml contents : " + xml
+				log.warning("Error parsing xml contents : enc="
+						+ ((enc != null) ? enc.length() : "[none]") + " xml="
+						+ ((xml != null) ? xml.length() : "[none]")
 						+ System.getProperty("line.separator")
 						+ "Original stack trace : " + e.getMessage());
 			}
@@ -219,8 +303,8 @@ public class SaveServlet extends HttpServlet
 					+ request.getHeader("Referer") + "\" in="
 					+ request.getContentLength() + " enc="
 					+ ((enc != null) ? enc.length() : "[none]") + " xml="
-					+ ((xml != null) ? xml.length() : "[none]") + " dt="
-					+ request.getContentLength() + " mem=" + mem + " dt="
+					+ ((xml != null) ? xml.length() : "[none]") + " out="
+					+ ((size >= 0) ? size : "[none]") + " mem=" + mem + " dt="
 					+ (System.currentTimeMillis() - t0));
 		}
 		else
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Holds the connection-pooled HTTP client that is shared by all servlets for
+ * outbound requests so that connections (and TLS sessions) are reused across
+ * requests. The limits and timeouts can be changed with the system
+ * properties below. The client is used for different users so it does not
+ * keep any cookies.
+ */
+public class SharedHttpClient
+{
+
+	/**
+	 * Maximum number of pooled connections. Default is 200.
+	 */
+	public static final int MAX_TOTAL = Integer
+			.getInteger("drawio.http.maxTotal", 200);
+
+	/**
+	 * Maximum number of pooled connections per host. Default is 20.
+	 */
+	public static final int MAX_PER_ROUTE = Integer
+			.getInteger("drawio.http.maxPerRoute", 20);
+
+	/**
+	 * Timeout for establishing a connection in milliseconds. Default is 10
+	 * seconds.
+	 */
+	public static final int CONNECT_TIMEOUT = Integer
+			.getInteger("drawio.http.connectTimeout", 10000);
+
+	/**
+	 * Timeout for reading data in milliseconds. Default is 30 seconds.
+	 */
+	public static final int SOCKET_TIMEOUT = Integer
+			.getInteger("drawio.http.socketTimeout", 30000);
+
+	/**
+	 * Timeout for waiting for a pooled connection in milliseconds. Default
+	 * is 5 seconds.
+	 */
+	public static final int POOL_TIMEOUT = Integer
+			.getInteger("drawio.http.poolTimeout", 5000);
+
+	/**
+	 * Maximum time in milliseconds to keep an idle connection alive. Default
+	 * is 30 seconds.
+	 */
+	public static final int KEEP_ALIVE = Integer
+			.getInteger("drawio.http.keepAlive", 30000);
+
+	/**
+	 * Maximum number of redirects that are followed.
+	 */
+	public static final int MAX_REDIRECTS = 5;
+
+	/**
+	 * Holds the connection manager.
+	 */
+	protected static PoolingHttpClientConnectionManager connectionManager = null;
+
+	/**
+	 * Holds the shared client.
+	 */
+	protected static CloseableHttpClient client = null;
+
+	/**
+	 * Returns the shared client. The client is created on first use.
+	 */
+	public static synchronized CloseableHttpClient getClient()
+	{
+		if (client == null)
+		{
+			connectionManager = new PoolingHttpClientConnectionManager(
+					KEEP_ALIVE, TimeUnit.MILLISECONDS);
+			connectionManager.setMaxTotal(MAX_TOTAL);
+			connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+			connectionManager.setValidateAfterInactivity(2000);
+
+			RequestConfig config = RequestConfig.custom()
+					.setConnectTimeout(CONNECT_TIMEOUT)
+					.setSocketTimeout(SOCKET_TIMEOUT)
+					.setConnectionRequestTimeout(POOL_TIMEOUT)
+					.setMaxRedirects(MAX_REDIRECTS).build();
+
+			// Cookies of one user must not be sent for other users
+			client = HttpClients.custom().disableCookieManagement()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(config)
+					.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy()
+					{
+						public long getKeepAliveDuration(HttpResponse response,
+								HttpContext context)
+						{
+							long duration = super.getKeepAliveDuration(
+									response, context);
+
+							return (duration > 0 && duration < KEEP_ALIVE)
+									? duration : KEEP_ALIVE;
+						}
+					}).evictExpiredConnections()
+					.evictIdleConnections(KEEP_ALIVE, TimeUnit.MILLISECONDS)
+					.build();
+		}
+
+		return client;
+	}
+
+	/**
+	 * Closes the shared client and all pooled connections. This is called
+	 * by SharedHttpClientListener when the web application is destroyed.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (client != null)
+		{
+			try
+			{
+				client.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+
+			client = null;
+			connectionManager = null;
+		}
+	}
+
+	/**
+	 * Returns a URI for the given URL. Characters that are not allowed in a
+	 * URI (eg. spaces) are percent-encoded as UTF-8. Existing escapes are
+	 * kept.
+	 */
+	public static URI toUri(String url) throws URISyntaxException
+	{
+		try
+		{
+			return new URI(url);
+		}
+		catch (URISyntaxException e)
+		{
+			byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+			StringBuilder result = new StringBuilder(bytes.length + 16);
+			boolean fragment = false;
+
+			for (byte b : bytes)
+			{
+				int c = b & 0xff;
+
+				// Only the first hash starts the fragment
+				if (c > 0x20 && c < 0x7f && "\"<>\\^`{|}".indexOf(c) < 0
+						&& (c != '#' || !fragment))
+				{
+					fragment = fragment || c == '#';
+					result.append((char) c);
+				}
+				else
+				{
+					result.append('%');
+					result.append(Character.toUpperCase(
+							Character.forDigit(c >> 4, 16)));
+					result.append(Character.toUpperCase(
+							Character.forDigit(c & 0xf, 16)));
+				}
+			}
+
+			return new URI(result.toString());
+		}
+	}
+
+	/**
+	 * Throws an exception for error status codes in the same way as
+	 * HttpURLConnection.getInputStream, ie. FileNotFoundException for 404
+	 * and 410 and IOException for all other codes from 400.
+	 */
+	public static void checkStatus(int status, String url) throws IOException
+	{
+		if (status == 404 || status == 410)
+		{
+			throw new FileNotFoundException(url);
+		}
+		else if (status >= 400)
+		{
+			throw new IOException(
+					"Server returned HTTP response code: " + status
+							+ " for URL: " + url);
+		}
+	}
+
+	/**
+	 * Reads the given response body into a byte array.
+	 */
+	public static byte[] readBody(HttpResponse response) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		if (response.getEntity() != null)
+		{
+			response.getEntity().writeTo(out);
+		}
+
+		return out.toByteArray();
+	}
+
+}
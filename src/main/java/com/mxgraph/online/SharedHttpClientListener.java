@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Closes the shared HTTP client and its pooled connections when the web
+ * application is undeployed or redeployed.
+ */
+public class SharedHttpClientListener implements ServletContextListener
+{
+
+	/**
+	 *
+	 */
+	public void contextInitialized(ServletContextEvent event)
+	{
+		// Client is created on first use
+	}
+
+	/**
+	 *
+	 */
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		SharedHttpClient.shutdown();
+	}
+
+}
@@ -0,0 +1,595 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent fetches for the same key. The first request for a key
+ * becomes the leader of a flight and performs the fetch. It publishes the
+ * status and the body bytes to the flight while sending them to its own
+ * client. Requests for the same key that arrive while the flight is running
+ * join as followers and stream the body from the shared buffer, blocking
+ * until the leader has written more bytes. Followers that join late get the
+ * complete buffer from the start, so the body is buffered from the start
+ * while the flight can be joined. Once the body exceeds the maximum shared
+ * size or the flight is finished, new requests start their own fetch and
+ * only the bytes that the followers have not read are kept. If there are no
+ * followers then nothing is buffered. If a follower falls behind by more
+ * than the maximum shared size then the leader waits for it up to the
+ * timeout, after which the follower fails.
+ */
+public class SingleFlight
+{
+
+	/**
+	 * Default maximum size of the shared buffer for joining a flight.
+	 */
+	public static final long DEFAULT_MAX_SHARED_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * Maps from keys to running flights.
+	 */
+	protected final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * Maximum size of the shared buffer for joining a flight.
+	 */
+	protected final long maxSharedSize;
+
+	/**
+	 * Maximum time in milliseconds that a follower waits for the leader.
+	 */
+	protected final long timeout;
+
+	/**
+	 * Counters for the statistics.
+	 */
+	protected final LongAdder leaders = new LongAdder();
+
+	protected final LongAdder followers = new LongAdder();
+
+	/**
+	 * Constructs a new registry with the given timeout for followers.
+	 */
+	public SingleFlight(long timeout)
+	{
+		this(timeout, DEFAULT_MAX_SHARED_SIZE);
+	}
+
+	/**
+	 * Constructs a new registry with the given timeout and maximum shared
+	 * size.
+	 */
+	public SingleFlight(long timeout, long maxSharedSize)
+	{
+		this.timeout = timeout;
+		this.maxSharedSize = maxSharedSize;
+	}
+
+	/**
+	 * Returns a new flight for the given key.
+	 */
+	public Flight create(String key)
+	{
+		return new Flight(key);
+	}
+
+	/**
+	 * Returns the running flight for the key of the given flight or the
+	 * given flight if there is no running flight. In the latter case the
+	 * caller is the leader and must call {@link #finish} when the fetch is
+	 * done.
+	 */
+	public Flight join(Flight created)
+	{
+		String key = created.key;
+
+		while (true)
+		{
+			Flight flight = flights.putIfAbsent(key, created);
+
+			if (flight == null)
+			{
+				leaders.increment();
+
+				return created;
+			}
+			else if (flight.join())
+			{
+				followers.increment();
+
+				return flight;
+			}
+
+			// Replaces a flight that can no longer be joined
+			if (flights.replace(key, flight, created))
+			{
+				leaders.increment();
+
+				return created;
+			}
+		}
+	}
+
+	/**
+	 * Marks the given flight as finished and removes it from the registry.
+	 */
+	public void finish(Flight flight)
+	{
+		flights.remove(flight.key, flight);
+		flight.finish();
+	}
+
+	/**
+	 * Returns the number of leaders.
+	 */
+	public long getLeaderCount()
+	{
+		return leaders.sum();
+	}
+
+	/**
+	 * Returns the number of followers.
+	 */
+	public long getFollowerCount()
+	{
+		return followers.sum();
+	}
+
+	/**
+	 * Holds the state and the shared body of a fetch.
+	 */
+	public class Flight
+	{
+
+		final String key;
+
+		/**
+		 * Holds the buffered chunks. The first chunk has the index base.
+		 */
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+
+		int base = 0;
+
+		/**
+		 * Total size of the body and size of the buffered chunks.
+		 */
+		long size = 0;
+
+		long retained = 0;
+
+		/**
+		 * Number of followers that joined but did not open their stream and
+		 * the open streams of the followers.
+		 */
+		int attached = 0;
+
+		final Set<Reader> readers = new HashSet<Reader>();
+
+		int status = 0;
+
+		String contentType = null;
+
+		Exception failure = null;
+
+		boolean started = false;
+
+		boolean done = false;
+
+		boolean joinable = true;
+
+		Flight(String key)
+		{
+			this.key = key;
+		}
+
+		/**
+		 * Returns true if a follower may join this flight. The follower is
+		 * attached and must call {@link #openStream} and close the stream.
+		 */
+		synchronized boolean join()
+		{
+			if (joinable && !done)
+			{
+				attached++;
+
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Returns true if the body is buffered, ie. if the flight can be
+		 * joined or if there are followers.
+		 */
+		boolean isBuffering()
+		{
+			return (joinable && !done) || attached > 0 || !readers.isEmpty();
+		}
+
+		/**
+		 * Removes the chunks that are no longer needed. Chunks are kept from
+		 * the start while the flight can be joined, otherwise up to the
+		 * slowest follower. If force is true then at most the maximum shared
+		 * size is kept, dropping the chunks of followers that are behind.
+		 */
+		void release(boolean force)
+		{
+			int keep = base;
+
+			if (!isBuffering())
+			{
+				keep = base + chunks.size();
+			}
+			else if (!joinable || done)
+			{
+				keep = base + chunks.size();
+
+				for (Reader reader : readers)
+				{
+					keep = Math.min(keep, reader.index);
+				}
+
+				// Followers that have not opened their stream need the start
+				if (attached > 0)
+				{
+					keep = base;
+				}
+			}
+
+			// Drops followers that are too far behind
+			while (force && retained > maxSharedSize
+					&& keep - base < chunks.size())
+			{
+				keep++;
+			}
+
+			while (base < keep && !chunks.isEmpty())
+			{
+				retained -= chunks.remove(0).length;
+				base++;
+			}
+		}
+
+		/**
+		 * Publishes the status and the detected content type of the
+		 * response. Called by the leader before the body is written.
+		 */
+		public synchronized void start(int status, String contentType)
+		{
+			this.status = status;
+			this.contentType = contentType;
+			started = true;
+			notifyAll();
+		}
+
+		/**
+		 * Publishes the given failure. Called by the leader.
+		 */
+		public synchronized void fail(Exception e)
+		{
+			if (failure == null)
+			{
+				failure = e;
+			}
+
+			joinable = false;
+			release(false);
+			notifyAll();
+		}
+
+		/**
+		 * Appends the given bytes to the shared body if the body is
+		 * buffered. Waits up to the timeout for followers that are more than
+		 * the maximum shared size behind.
+		 */
+		synchronized void write(byte[] b, int off, int len)
+		{
+			if (len > 0)
+			{
+				size += len;
+
+				if (size > maxSharedSize)
+				{
+					joinable = false;
+				}
+
+				if (isBuffering())
+				{
+					byte[] chunk = new byte[len];
+					System.arraycopy(b, off, chunk, 0, len);
+					chunks.add(chunk);
+					retained += len;
+					release(false);
+					notifyAll();
+
+					long end = System.currentTimeMillis() + timeout;
+
+					while (retained > maxSharedSize && isBuffering())
+					{
+						long wait = end - System.currentTimeMillis();
+
+						if (wait <= 0)
+						{
+							break;
+						}
+
+						try
+						{
+							wait(wait);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							break;
+						}
+
+						release(false);
+					}
+				}
+
+				release(true);
+			}
+		}
+
+		/**
+		 * Marks the body as complete. A flight that was not started is
+		 * failed so that waiting followers do not block.
+		 */
+		synchronized void finish()
+		{
+			if (!started && failure == null)
+			{
+				failure = new IOException("Fetch ended without response");
+			}
+
+			done = true;
+			joinable = false;
+			release(false);
+			notifyAll();
+		}
+
+		/**
+		 * Returns a stream that publishes all bytes that are read from the
+		 * given stream.
+		 */
+		public InputStream wrap(InputStream in)
+		{
+			return new FilterInputStream(in)
+			{
+				public int read() throws IOException
+				{
+					int b = super.read();
+
+					if (b >= 0)
+					{
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					int n = super.read(b, off, len);
+
+					if (n > 0)
+					{
+						write(b, off, n);
+					}
+
+					return n;
+				}
+
+				public long skip(long n) throws IOException
+				{
+					// Skipped bytes must be published
+					byte[] tmp = new byte[(int) Math.min(n, 8192)];
+					int len = read(tmp, 0, tmp.length);
+
+					return Math.max(0, len);
+				}
+
+				public boolean markSupported()
+				{
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Waits until the leader has started the response and returns the
+		 * status. Throws the failure of the leader.
+		 */
+		public synchronized int awaitStatus() throws Exception
+		{
+			long end = System.currentTimeMillis() + timeout;
+
+			while (!started && failure == null)
+			{
+				await(end);
+			}
+
+			if (failure != null && !started)
+			{
+				throw failure;
+			}
+
+			return status;
+		}
+
+		/**
+		 * Returns the content type that was published by the leader. Must
+		 * be called after {@link #awaitStatus}.
+		 */
+		public synchronized String getContentType()
+		{
+			return contentType;
+		}
+
+		/**
+		 * Waits for a change or until the given end time.
+		 */
+		void await(long end) throws IOException
+		{
+			long wait = end - System.currentTimeMillis();
+
+			if (wait <= 0)
+			{
+				throw new IOException("Timeout waiting for shared fetch");
+			}
+
+			try
+			{
+				wait(wait);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+
+				throw new InterruptedIOException();
+			}
+		}
+
+		/**
+		 * Returns a stream for the shared body from the start for a follower
+		 * that has joined this flight. Reading blocks until the leader has
+		 * written more bytes or the flight is finished. A failure of the
+		 * leader is thrown as an IOException. The stream must be closed so
+		 * that the chunks it has not read can be released.
+		 */
+		public synchronized InputStream openStream()
+		{
+			Reader reader = new Reader();
+
+			if (attached > 0)
+			{
+				attached--;
+			}
+
+			readers.add(reader);
+
+			return reader;
+		}
+
+		/**
+		 * Stream of a follower.
+		 */
+		protected class Reader extends InputStream
+		{
+
+			/**
+			 * Index of the current chunk and offset in the chunk.
+			 */
+			int index = 0;
+
+			int offset = 0;
+
+			boolean closed = false;
+
+			/**
+			 *
+			 */
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+
+				return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+			}
+
+			/**
+			 *
+			 */
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (len == 0)
+				{
+					return 0;
+				}
+
+				byte[] chunk;
+
+				synchronized (Flight.this)
+				{
+					long end = System.currentTimeMillis() + timeout;
+
+					while (index - base >= chunks.size())
+					{
+						if (failure != null)
+						{
+							throw (failure instanceof IOException)
+									? (IOException) failure
+									: new IOException(failure);
+						}
+						else if (done)
+						{
+							return -1;
+						}
+
+						await(end);
+					}
+
+					// Chunks were dropped since this stream is too far behind
+					if (index < base)
+					{
+						throw new IOException(
+								"Follower is too far behind shared fetch");
+					}
+
+					chunk = chunks.get(index - base);
+				}
+
+				int n = Math.min(len, chunk.length - offset);
+				System.arraycopy(chunk, offset, b, off, n);
+				offset += n;
+
+				if (offset == chunk.length)
+				{
+					synchronized (Flight.this)
+					{
+						index++;
+						offset = 0;
+						release(false);
+
+						// Wakes up the leader if it waits for this stream
+						Flight.this.notifyAll();
+					}
+				}
+
+				return n;
+			}
+
+			/**
+			 * Detaches this stream from the flight.
+			 */
+			public void close()
+			{
+				synchronized (Flight.this)
+				{
+					if (!closed)
+					{
+						closed = true;
+						readers.remove(this);
+						release(false);
+						Flight.this.notifyAll();
+					}
+				}
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright (c) 2006-2019, JGraph Ltd
+ */
+package com.mxgraph.online;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent requests per upstream host and the total
+ * number of bytes in flight for all hosts so that a single slow host or a
+ * single large response cannot use all of the capacity of the proxy. Excess
+ * requests wait for a bounded time and are then rejected. Latency, errors
+ * and bytes are counted per host. The number of hosts is limited and the
+ * least recently used hosts without running or waiting requests are removed
+ * so that every host keeps its own limit on a long running instance.
+ */
+public class UpstreamGovernor
+{
+
+	/**
+	 * Default maximum number of concurrent requests per host.
+	 */
+	public static final int DEFAULT_MAX_PER_HOST = Integer
+			.getInteger("drawio.proxy.maxPerHost", 16);
+
+	/**
+	 * Default maximum number of bytes in flight for all hosts.
+	 */
+	public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = Long
+			.getLong("drawio.proxy.maxBytesInFlight", 64L * 1024 * 1024);
+
+	/**
+	 * Default maximum time in milliseconds to wait for a permit or bytes.
+	 */
+	public static final long DEFAULT_MAX_WAIT = Long
+			.getLong("drawio.proxy.maxWait", 5000);
+
+	/**
+	 * Share of the bytes in flight that a single host may use.
+	 */
+	public static final double HOST_BYTES_SHARE = 0.5;
+
+	/**
+	 * Bytes that are reserved for a response without a content length.
+	 */
+	public static final long UNKNOWN_LENGTH_RESERVATION = 1024 * 1024;
+
+	/**
+	 * Maximum number of idle hosts that are kept with their counters. Hosts
+	 * with running or waiting requests are never removed.
+	 */
+	public static final int MAX_HOSTS = 1000;
+
+	/**
+	 * Maps from host names to limits and counters in access order. Guarded
+	 * by itself.
+	 */
+	protected final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>(
+			16, 0.75f, true);
+
+	protected final int maxPerHost;
+
+	protected final long maxBytesInFlight;
+
+	protected final long maxHostBytes;
+
+	protected final long maxWait;
+
+	/**
+	 * Number of bytes that are reserved for all hosts. Guarded by this.
+	 */
+	protected long bytesInFlight = 0;
+
+	/**
+	 * Constructs a new governor with the default limits.
+	 */
+	public UpstreamGovernor()
+	{
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_MAX_BYTES_IN_FLIGHT,
+				DEFAULT_MAX_WAIT);
+	}
+
+	/**
+	 * Constructs a new governor with the given limits.
+	 */
+	public UpstreamGovernor(int maxPerHost, long maxBytesInFlight,
+			long maxWait)
+	{
+		this.maxPerHost = maxPerHost;
+		this.maxBytesInFlight = maxBytesInFlight;
+		this.maxHostBytes = (long) (maxBytesInFlight * HOST_BYTES_SHARE);
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Returns the entry for the given host name and counts the caller as a
+	 * user of the entry. The caller must call {@link #detach} when done.
+	 */
+	protected Host attach(String name)
+	{
+		name = (name != null) ? name.toLowerCase(Locale.ENGLISH) : "";
+
+		synchronized (hosts)
+		{
+			Host host = hosts.get(name);
+
+			if (host == null)
+			{
+				host = new Host(name);
+				hosts.put(name, host);
+			}
+
+			host.users++;
+			evict();
+
+			return host;
+		}
+	}
+
+	/**
+	 * Counts the end of a use of the given entry.
+	 */
+	protected void detach(Host host)
+	{
+		synchronized (hosts)
+		{
+			host.users--;
+		}
+	}
+
+	/**
+	 * Removes the least recently used hosts without users while there are
+	 * too many hosts. Must be called while holding the lock of the hosts.
+	 */
+	protected void evict()
+	{
+		Iterator<Host> it = hosts.values().iterator();
+
+		while (hosts.size() > MAX_HOSTS && it.hasNext())
+		{
+			if (it.next().users == 0)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns a permit for a request to the given host. Waits for a bounded
+	 * time if the maximum number of requests for the host is running. The
+	 * permit must be released when the response is done.
+	 */
+	public Permit acquire(String hostname) throws IOException
+	{
+		Host host = attach(hostname);
+
+		try
+		{
+			if (!host.permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+			{
+				host.rejected.increment();
+				detach(host);
+
+				throw new RejectedException(
+						"Too many requests for " + host.name);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			detach(host);
+
+			throw new InterruptedIOException();
+		}
+
+		host.requests.increment();
+
+		return new Permit(host);
+	}
+
+	/**
+	 * Reserves the given number of bytes for the given host. Waits for a
+	 * bounded time if the budget is used. A request is always admitted if
+	 * nothing is in flight so that large responses are not starved.
+	 */
+	protected synchronized void reserve(Host host, long bytes)
+			throws IOException
+	{
+		long end = System.currentTimeMillis() + maxWait;
+
+		while ((bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight)
+				|| (host.bytesInFlight > 0
+						&& host.bytesInFlight + bytes > maxHostBytes))
+		{
+			long wait = end - System.currentTimeMillis();
+
+			if (wait <= 0)
+			{
+				host.rejected.increment();
+
+				throw new RejectedException(
+						"Too many bytes in flight for " + host.name);
+			}
+
+			try
+			{
+				wait(wait);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+
+				throw new InterruptedIOException();
+			}
+		}
+
+		bytesInFlight += bytes;
+		host.bytesInFlight += bytes;
+	}
+
+	/**
+	 * Releases the given number of bytes for the given host.
+	 */
+	protected synchronized void unreserve(Host host, long bytes)
+	{
+		if (bytes > 0)
+		{
+			bytesInFlight -= bytes;
+			host.bytesInFlight -= bytes;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the statistics of this governor as plain text.
+	 */
+	public void writeStats(PrintWriter writer)
+	{
+		synchronized (this)
+		{
+			writer.println("upstream bytes in flight: " + bytesInFlight);
+		}
+
+		TreeMap<String, Host> sorted;
+
+		synchronized (hosts)
+		{
+			sorted = new TreeMap<String, Host>(hosts);
+		}
+
+		for (Host host : sorted.values())
+		{
+			host.writeStats(writer);
+		}
+	}
+
+	/**
+	 * Thrown if a request is rejected because of the limits.
+	 */
+	public static class RejectedException extends IOException
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		public RejectedException(String message)
+		{
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Limits and counters for a single host.
+	 */
+	public class Host
+	{
+
+		final String name;
+
+		final Semaphore permits = new Semaphore(maxPerHost, true);
+
+		/**
+		 * Number of running and waiting requests. Guarded by the hosts.
+		 */
+		int users = 0;
+
+		/**
+		 * Number of bytes that are reserved for this host. Guarded by the
+		 * governor.
+		 */
+		long bytesInFlight = 0;
+
+		/**
+		 * Time to the response headers in milliseconds.
+		 */
+		public final CacheMetrics.Histogram latency = new CacheMetrics.Histogram(
+				10, 14);
+
+		public final LongAdder requests = new LongAdder();
+
+		public final LongAdder errors = new LongAdder();
+
+		public final LongAdder rejected = new LongAdder();
+
+		public final LongAdder bytes = new LongAdder();
+
+		Host(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Returns the number of running requests.
+		 */
+		public int getActiveCount()
+		{
+			return maxPerHost - permits.availablePermits();
+		}
+
+		/**
+		 * Writes the statistics of this host as plain text.
+		 */
+		public void writeStats(PrintWriter writer)
+		{
+			writer.println("upstream " + name + ": active="
+					+ getActiveCount() + " requests=" + requests.sum()
+					+ " errors=" + errors.sum() + " rejected="
+					+ rejected.sum() + " bytes=" + bytes.sum()
+					+ " latency p50=" + latency.getPercentile(50)
+					+ "ms p99=" + latency.getPercentile(99) + "ms");
+		}
+
+	}
+
+	/**
+	 * Holds the permit and the reserved bytes of a single request.
+	 */
+	public class Permit
+	{
+
+		final Host host;
+
+		final long start = System.currentTimeMillis();
+
+		long reserved = 0;
+
+		boolean released = false;
+
+		Permit(Host host)
+		{
+			this.host = host;
+		}
+
+		/**
+		 * Records the latency of the response headers and reserves the
+		 * bytes for the body with the given content length or -1 if the
+		 * length is unknown.
+		 */
+		public void reserve(long contentLength) throws IOException
+		{
+			host.latency.record(System.currentTimeMillis() - start);
+			long bytes = (contentLength >= 0) ? contentLength
+					: UNKNOWN_LENGTH_RESERVATION;
+			UpstreamGovernor.this.reserve(host, bytes);
+			reserved += bytes;
+		}
+
+		/**
+		 * Returns a stream that counts the bytes that are read from the
+		 * given stream.
+		 */
+		public InputStream wrap(InputStream in)
+		{
+			return new FilterInputStream(in)
+			{
+				public int read() throws IOException
+				{
+					int b = super.read();
+
+					if (b >= 0)
+					{
+						host.bytes.increment();
+					}
+
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					int n = super.read(b, off, len);
+
+					if (n > 0)
+					{
+						host.bytes.add(n);
+					}
+
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * Counts an error for the host.
+		 */
+		public void fail()
+		{
+			host.errors.increment();
+		}
+
+		/**
+		 * Releases the reserved bytes and the permit.
+		 */
+		public void release()
+		{
+			if (!released)
+			{
+				released = true;
+				unreserve(host, reserved);
+				reserved = 0;
+				host.permits.release();
+				detach(host);
+			}
+		}
+
+	}
+
+}
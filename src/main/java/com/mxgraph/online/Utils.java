@@ -5,15 +5,20 @@
 package com.mxgraph.online;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
@@ -46,34 +51,158 @@ public class Utils
 	 */
 	protected static final int IO_BUFFER_SIZE = 4 * 1024;
 
+	/**
+	 * Maximum number of idle inflaters and deflaters that are kept for reuse.
+	 */
+	protected static final int POOL_SIZE = 32;
+
+	/**
+	 * Holds idle inflaters for raw deflate data.
+	 */
+	protected static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(
+			POOL_SIZE);
+
+	/**
+	 * Holds idle deflaters for raw deflate data.
+	 */
+	protected static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(
+			POOL_SIZE);
+
+	/**
+	 * Returns an idle inflater for raw deflate data or a new inflater.
+	 */
+	protected static Inflater acquireInflater()
+	{
+		Inflater inflater = inflaters.poll();
+
+		return (inflater != null) ? inflater : new Inflater(true);
+	}
+
+	/**
+	 * Resets the given inflater and keeps it for reuse or releases it if the
+	 * pool is full.
+	 */
+	protected static void releaseInflater(Inflater inflater)
+	{
+		inflater.reset();
+
+		if (!inflaters.offer(inflater))
+		{
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Returns an idle deflater for raw deflate data or a new deflater.
+	 */
+	protected static Deflater acquireDeflater()
+	{
+		Deflater deflater = deflaters.poll();
+
+		return (deflater != null) ? deflater
+				: new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	/**
+	 * Resets the given deflater and keeps it for reuse or releases it if the
+	 * pool is full.
+	 */
+	protected static void releaseDeflater(Deflater deflater)
+	{
+		deflater.reset();
+
+		if (!deflaters.offer(deflater))
+		{
+			deflater.end();
+		}
+	}
+
 	/**
 	 * Applies a standard inflate algo to the input byte array
 	 * @param binary the byte array to inflate
-	 * @return the inflated String
+	 * @return the inflated String decoded as UTF-8
 	 * 
 	 */
 	public static String inflate(byte[] binary) throws IOException
 	{
-		StringBuffer result = new StringBuffer();
-		InputStream in = new InflaterInputStream(
-				new ByteArrayInputStream(binary), new Inflater(true));
+		Inflater inflater = acquireInflater();
+
+		try
+		{
+			ByteBuffer result = inflate(inflater, binary, null);
 
-		while (in.available() != 0)
+			// Decodes once after inflating so that characters are not split
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE)
+					.decode(result).toString();
+		}
+		finally
 		{
-			byte[] buffer = new byte[IO_BUFFER_SIZE];
-			int len = in.read(buffer, 0, IO_BUFFER_SIZE);
+			releaseInflater(inflater);
+		}
+	}
+
+	/**
+	 * Returns a stream that inflates the raw deflated data of the given
+	 * stream while reading. The inflater is returned to the pool when the
+	 * stream is closed.
+	 */
+	public static InputStream inflate(InputStream in)
+	{
+		final Inflater inflater = acquireInflater();
 
-			if (len <= 0)
+		return new InflaterInputStream(in, inflater, IO_BUFFER_SIZE)
+		{
+			boolean released = false;
+
+			public void close() throws IOException
 			{
-				break;
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					if (!released)
+					{
+						released = true;
+						releaseInflater(inflater);
+					}
+				}
 			}
+		};
+	}
 
-			result.append(new String(buffer, 0, len));
-		}
+	/**
+	 * Returns a stream that deflates all bytes written to it and writes the
+	 * raw deflated data to the given stream. Closing the stream finishes the
+	 * data, closes the given stream and returns the deflater to the pool.
+	 */
+	public static OutputStream deflate(OutputStream out)
+	{
+		final Deflater deflater = acquireDeflater();
 
-		in.close();
+		return new DeflaterOutputStream(out, deflater, IO_BUFFER_SIZE)
+		{
+			boolean released = false;
 
-		return result.toString();
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					if (!released)
+					{
+						released = true;
+						releaseDeflater(deflater);
+					}
+				}
+			}
+		};
 	}
 
 	/**
@@ -84,25 +213,130 @@ public class Utils
 	 */
 	public static byte[] deflate(String inString) throws IOException
 	{
-		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-		byte[] inBytes = inString.getBytes("UTF-8");
-		deflater.setInput(inBytes);
+		return deflate(inString.getBytes(StandardCharsets.UTF_8), null);
+	}
+
+	/**
+	 * Applies a standard deflate algo to the input byte array using the given
+	 * optional preset dictionary
+	 * @param data the byte array to deflate
+	 * @param dictionary the preset dictionary or null
+	 * @return the deflated byte array
+	 * 
+	 */
+	public static byte[] deflate(byte[] data, byte[] dictionary)
+	{
+		Deflater deflater = acquireDeflater();
+
+		try
+		{
+			if (dictionary != null)
+			{
+				deflater.setDictionary(dictionary);
+			}
+
+			deflater.setInput(data);
+			deflater.finish();
+
+			// Deflated data is rarely larger than the input
+			byte[] result = new byte[data.length / 2 + 64];
+			int len = 0;
+
+			while (!deflater.finished())
+			{
+				if (len == result.length)
+				{
+					result = Arrays.copyOf(result, result.length * 2);
+				}
+
+				len += deflater.deflate(result, len, result.length - len);
+			}
+
+			return (len == result.length) ? result
+					: Arrays.copyOf(result, len);
+		}
+		finally
+		{
+			releaseDeflater(deflater);
+		}
+	}
+
+	/**
+	 * Applies a standard inflate algo to the input byte array using the given
+	 * optional preset dictionary
+	 * @param binary the byte array to inflate
+	 * @param dictionary the preset dictionary used for deflating or null
+	 * @return the inflated byte array
+	 * 
+	 */
+	public static byte[] inflate(byte[] binary, byte[] dictionary)
+			throws IOException
+	{
+		Inflater inflater = acquireInflater();
 
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
-				inBytes.length);
-		deflater.finish();
-		byte[] buffer = new byte[IO_BUFFER_SIZE];
+		try
+		{
+			ByteBuffer result = inflate(inflater, binary, dictionary);
 
-		while (!deflater.finished())
+			return (result.remaining() == result.array().length)
+					? result.array()
+					: Arrays.copyOf(result.array(), result.remaining());
+		}
+		finally
 		{
-			int count = deflater.deflate(buffer); // returns the generated code... index  
-			outputStream.write(buffer, 0, count);
+			releaseInflater(inflater);
 		}
+	}
+
+	/**
+	 * Inflates the given data with the given inflater and returns a buffer
+	 * that wraps the output array and the inflated length.
+	 */
+	protected static ByteBuffer inflate(Inflater inflater, byte[] binary,
+			byte[] dictionary) throws IOException
+	{
+		try
+		{
+			if (dictionary != null)
+			{
+				inflater.setDictionary(dictionary);
+			}
+
+			inflater.setInput(binary);
+			byte[] result = new byte[binary.length * 4 + 64];
+			boolean padded = false;
+			int len = 0;
+
+			while (!inflater.finished())
+			{
+				if (len == result.length)
+				{
+					result = Arrays.copyOf(result, result.length * 2);
+				}
 
-		outputStream.close();
-		byte[] output = outputStream.toByteArray();
+				int count = inflater.inflate(result, len, result.length - len);
+
+				// Raw inflaters may need an extra byte to detect the end
+				if (count == 0 && inflater.needsInput() && !padded)
+				{
+					inflater.setInput(new byte[1]);
+					padded = true;
+				}
+				else if (count == 0 && (inflater.needsInput()
+						|| inflater.needsDictionary()))
+				{
+					throw new IOException("Truncated deflate data");
+				}
+
+				len += count;
+			}
 
-		return output;
+			return ByteBuffer.wrap(result, 0, len);
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(e);
+		}
 	}
 
 	/**
@@ -217,243 +451,27 @@ public class Utils
 	/**
 	 * Checks the file type of an input stream and returns the
 	 * bytes that have been read (because URL connections to not
-	 * have support for mark/reset).
+	 * have support for mark/reset). Use {@link ContentSniffer#check}
+	 * for streams that support mark/reset to check the content
+	 * without consuming it.
 	 */
 	static public byte[] checkStreamContent(InputStream is)
 			throws IOException, UnsupportedContentException
 	{
-		byte[] head = new byte[16];
-		boolean valid = false;
-
-		if (is.read(head) == head.length)
+		byte[] head = new byte[ContentSniffer.HEAD_SIZE];
+		int len = 0;
+		int n = 0;
+
+		// Reads until the head is complete since a single read may return
+		// fewer bytes
+		while (len < head.length
+				&& (n = is.read(head, len, head.length - len)) >= 0)
 		{
-			int c1 = head[0] & 0xFF;
-			int c2 = head[1] & 0xFF;
-			int c3 = head[2] & 0xFF;
-			int c4 = head[3] & 0xFF;
-			int c5 = head[4] & 0xFF;
-			int c6 = head[5] & 0xFF;
-			int c7 = head[6] & 0xFF;
-			int c8 = head[7] & 0xFF;
-			int c9 = head[8] & 0xFF;
-			int c10 = head[9] & 0xFF;
-			int c11 = head[10] & 0xFF;
-			int c12 = head[11] & 0xFF;
-			int c13 = head[12] & 0xFF;
-			int c14 = head[13] & 0xFF;
-			int c15 = head[14] & 0xFF;
-			int c16 = head[15] & 0xFF;
-
-			if (c1 == '<')
-			{
-				// text/html
-				if (c2 == '!'
-						|| ((c2 == 'h'
-								&& (c3 == 't' && c4 == 'm' && c5 == 'l'
-										|| c3 == 'e' && c4 == 'a' && c5 == 'd')
-								|| (c2 == 'b' && c3 == 'o' && c4 == 'd'
-										&& c5 == 'y')))
-						|| ((c2 == 'H'
-								&& (c3 == 'T' && c4 == 'M' && c5 == 'L'
-										|| c3 == 'E' && c4 == 'A' && c5 == 'D')
-								|| (c2 == 'B' && c3 == 'O' && c4 == 'D'
-										&& c5 == 'Y'))))
-				{
-					valid = true;
-				}
-
-				// application/xml
-				if (c2 == '?' && c3 == 'x' && c4 == 'm' && c5 == 'l'
-						&& c6 == ' ')
-				{
-					valid = true;
-				}
-			}
-
-			// big and little (identical) endian UTF-8 encodings, with BOM
-			// application/xml
-			if (c1 == 0xef && c2 == 0xbb && c3 == 0xbf)
-			{
-				if (c4 == '<' && c5 == '?' && c6 == 'x')
-				{
-					valid = true;
-				}
-			}
-
-			// big and little endian UTF-16 encodings, with byte order mark
-			// application/xml
-			if (c1 == 0xfe && c2 == 0xff)
-			{
-				if (c3 == 0 && c4 == '<' && c5 == 0 && c6 == '?' && c7 == 0
-						&& c8 == 'x')
-				{
-					valid = true;
-				}
-			}
-
-			// application/xml
-			if (c1 == 0xff && c2 == 0xfe)
-			{
-				if (c3 == '<' && c4 == 0 && c5 == '?' && c6 == 0 && c7 == 'x'
-						&& c8 == 0)
-				{
-					valid = true;
-				}
-			}
-
-			// big and little endian UTF-32 encodings, with BOM
-			// application/xml
-			if (c1 == 0x00 && c2 == 0x00 && c3 == 0xfe && c4 == 0xff)
-			{
-				if (c5 == 0 && c6 == 0 && c7 == 0 && c8 == '<' && c9 == 0
-						&& c10 == 0 && c11 == 0 && c12 == '?' && c13 == 0
-						&& c14 == 0 && c15 == 0 && c16 == 'x')
-				{
-					valid = true;
-				}
-			}
-
-			// application/xml
-			if (c1 == 0xff && c2 == 0xfe && c3 == 0x00 && c4 == 0x00)
-			{
-				if (c5 == '<' && c6 == 0 && c7 == 0 && c8 == 0 && c9 == '?'
-						&& c10 == 0 && c11 == 0 && c12 == 0 && c13 == 'x'
-						&& c14 == 0 && c15 == 0 && c16 == 0)
-				{
-					valid = true;
-				}
-			}
-
-			// image/gif
-			if (c1 == 'G' && c2 == 'I' && c3 == 'F' && c4 == '8')
-			{
-				valid = true;
-			}
-
-			// image/x-bitmap
-			if (c1 == '#' && c2 == 'd' && c3 == 'e' && c4 == 'f')
-			{
-				valid = true;
-			}
-
-			// image/x-pixmap
-			if (c1 == '!' && c2 == ' ' && c3 == 'X' && c4 == 'P' && c5 == 'M'
-					&& c6 == '2')
-			{
-				valid = true;
-			}
-
-			// image/png
-			if (c1 == 137 && c2 == 80 && c3 == 78 && c4 == 71 && c5 == 13
-					&& c6 == 10 && c7 == 26 && c8 == 10)
-			{
-				valid = true;
-			}
-
-			// image/jpeg
-			if (c1 == 0xFF && c2 == 0xD8 && c3 == 0xFF)
-			{
-				if (c4 == 0xE0 || c4 == 0xEE)
-				{
-					valid = true;
-				}
-
-				/**
-				 * File format used by digital cameras to store images.
-				 * Exif Format can be read by any application supporting
-				 * JPEG. Exif Spec can be found at:
-				 * http://www.pima.net/standards/it10/PIMA15740/Exif_2-1.PDF
-				 */
-				if ((c4 == 0xE1) && (c7 == 'E' && c8 == 'x' && c9 == 'i'
-						&& c10 == 'f' && c11 == 0))
-				{
-					valid = true;
-				}
-			}
-
-			// Additional signatures
-			// See https://www.garykessler.net/library/file_sigs.html
-			// and https://en.wikipedia.org/wiki/List_of_file_signatures
-			// TODO: Add check for .eot fonts
-			// ttf
-			if (c1 == 0x00 && c2 == 0x01 && c3 == 0x00 && c4 == 0x00
-					&& c5 == 0x00)
-			{
-				valid = true;
-			}
-
-			// otf
-			if (c1 == 0x4F && c2 == 0x5a && c3 == 0x54 && c4 == 0x4F
-					&& c5 == 0x00)
-			{
-				valid = true;
-			}
-
-			// woff
-			if (c1 == 0x77 && c2 == 0x4F && c3 == 0x46 && c4 == 0x46)
-			{
-				valid = true;
-			}
-
-			// woff2
-			if (c1 == 0x77 && c2 == 0x4F && c3 == 0x46 && c4 == 0x32)
-			{
-				valid = true;
-			}
-
-			// vsdx, vssx (also zip, jar, odt, ods, odp, docx, xlsx, pptx, apk, aar)
-			if (c1 == 0x50 && c2 == 0x4B && c3 == 0x03 && c4 == 0x04)
-			{
-				valid = true;
-			}
-			else if (c1 == 0x50 && c2 == 0x4B && c3 == 0x03 && c4 == 0x06)
-			{
-				valid = true;
-			}
-
-			// vsd, ppt
-			if (c1 == 0xD0 && c2 == 0xCF && c3 == 0x11 && c4 == 0xE0
-					&& c5 == 0xA1 && c6 == 0xB1 && c7 == 0x1A && c8 == 0xE1)
-			{
-				valid = true;
-			}
-
-			// mxfile, mxlibrary, mxGraphModel
-			if (c1 == '<' && c2 == 'm' && c3 == 'x')
-			{
-				valid = true;
-			}
-
-			if (c1 == '<' && c2 == 'D' && c3 == 'O' && c4 == 'C' && c5 == 'T'
-					&& c6 == 'Y' && c7 == 'P' && c8 == 'E')
-			{
-				valid = true;
-			}
-
-			if (c1 == '<' && c2 == '!' && c3 == '-' && c4 == '-' && c5 == '['
-					&& c6 == 'i' && c7 == 'f' && c8 == ' ')
-			{
-				valid = true;
-			}
-
-			// Gliffy
-			if (c1 == '{' && c2 == '"' && c3 == 'c' && c4 == 'o' && c5 == 'n'
-					&& c6 == 't' && c7 == 'e' && c8 == 'n' && c9 == 't'
-					&& c10 == 'T' && c11 == 'y' && c12 == 'p' && c13 == 'e'
-					&& c14 == '"' && c15 == ':')
-			{
-				valid = true;
-			}
-
-			// Lucidchart
-			if (c1 == '{' && c2 == '"' && c3 == 's' && c4 == 't' && c5 == 'a'
-					&& c6 == 't' && c7 == 'e' && c8 == '"' && c9 == ':')
-			{
-				valid = true;
-			}
+			len += n;
 		}
 
-		if (!valid)
+		if (len < head.length
+				|| ContentSniffer.detect(ByteBuffer.wrap(head)) == null)
 		{
 			throw new UnsupportedContentException();
 		}